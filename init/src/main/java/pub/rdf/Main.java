@@ -1,33 +1,47 @@
 package pub.rdf;
 
+import org.eclipse.rdf4j.query.MalformedQueryException;
+import org.eclipse.rdf4j.query.QueryLanguage;
+import org.eclipse.rdf4j.query.parser.QueryParserUtil;
 import pub.rdf.builder.*;
-import org.eclipse.rdf4j.model.*;
-import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
 import pub.rdf.config.RDFPUBConfig;
-import pub.rdf.resource.RDFPUBResource;
-import pub.rdf.resource.ResourceFile;
+import pub.rdf.manifest.BuildManifest;
+import pub.rdf.traversal.ResourceTraversal;
 import pub.rdf.util.Program;
 import pub.rdf.util.Regex;
+import pub.rdf.watch.InputWatcher;
 
 import java.io.*;
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
-import java.util.regex.Pattern;
-
-import static pub.rdf.util.Program.out;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Main {
+    // Quiet period after the last file event before a watch mode rebuild starts
+    private final static long WATCH_DEBOUNCE_MILLIS = 300;
+
     public static void main(final String[] args) throws Exception {
+        // Separate options from positional arguments
+        final List<String> positional = new ArrayList<>(2);
+        boolean watch = false;
+        for(final String arg : args) {
+            if(arg.equals("--watch")) {
+                watch = true;
+            } else {
+                positional.add(arg);
+            }
+        }
+
         // Check for input and output directories
-        if(args.length < 2) {
+        if(positional.size() < 2) {
             Program.xerr("init requires two arguments: inputdir and outputdir",new IllegalArgumentException("Too few program arguments supplied"));
         }
 
-        final Path inputdir = Path.of(args[0]);
-        final Path outputdir = Path.of(args[1]);
+        final Path inputdir = Path.of(positional.get(0));
+        final Path outputdir = Path.of(positional.get(1));
 
         if(!Files.exists(inputdir)) {
             Program.xerr("Input directory does not exist.",new IllegalArgumentException("Input directory must exist"));
@@ -36,7 +50,7 @@ public class Main {
         // Load configuration from input directory
         final RDFPUBConfig config;
         try {
-            config = RDFPUBConfig.load(inputdir,outputdir);
+            config = RDFPUBConfig.load(inputdir,outputdir,watch);
         } catch(final FileNotFoundException e) {
             Program.xerr("No .rdfpub file found; it must exist and contain rdfpub site configuration",new IllegalStateException("No .rdfpub file found"));
             return;
@@ -66,153 +80,165 @@ public class Main {
 
         Program.out("Base URI is <%s>",config.getBaseURI());
 
-        // Add feature sets
-        final Builder[] builders = new Builder[] {
-            new FrameworkBuilder(config),
-            new ResourceFileBuilder(config),
-            new DatabaseBuilder(config),
-            new NginxConfigBuilder(config)
-        };
-
-        // Initialize features
-        for(final Builder builder : builders) {
-            builder.init();
+        if(!config.getStoreBackend().equals("native") && !config.getStoreBackend().equals("lmdb")) {
+            Program.xerr("Store backend must be either 'native' or 'lmdb'",new IllegalStateException("Invalid store backend specified"));
         }
 
-        // Initialize list of possible build errors
-        final List<Exception> buildErrors = new LinkedList<>();
-
-        // Initialize regex for included and excluded files
-        final Pattern includes;
-        if(!config.getIncludeFiles().isEmpty()) {
-            final StringBuilder includestr = new StringBuilder(256);
-            for (final String include : config.getIncludeFiles()) {
-                includestr.append("(?:").append(include).append(")|");
+        Program.out("Store backend is %s",config.getStoreBackend());
+
+        final List<List<String>> rdfFormats = new ArrayList<>(config.getResourceRDFFormats().values());
+        rdfFormats.add(config.getRDFFormats());
+        for(final List<String> formats : rdfFormats) {
+            if(formats.isEmpty() || !List.of("jsonld","nt","rdf","ttl").containsAll(formats)) {
+                Program.xerr("RDF formats must be a non-empty list of jsonld, nt, rdf and ttl",new IllegalStateException("Invalid RDF formats specified"));
             }
-            includes = Pattern.compile(includestr.deleteCharAt(includestr.length() - 1).toString());
-        } else {
-            includes = null;
         }
 
-        final Pattern excludes;
-        if(!config.getExcludeFiles().isEmpty()) {
-            final StringBuilder excludestr = new StringBuilder(256);
-            for (final String exclude : config.getExcludeFiles()) {
-                excludestr.append("(?:").append(exclude).append(")|");
+        if(!config.getQueryLimitPolicy().equals("fail") && !config.getQueryLimitPolicy().equals("truncate")) {
+            Program.xerr("Query limit policy must be either 'fail' or 'truncate'",new IllegalStateException("Invalid query limit policy specified"));
+        }
+
+        if(!config.getQueryResultFormat().equals("json") && !config.getQueryResultFormat().equals("packed")) {
+            Program.xerr("Query result format must be either 'json' or 'packed'",new IllegalStateException("Invalid query result format specified"));
+        }
+
+        // Cache sizes and times are written into the Nginx config as is
+        if(!config.getSPARQLCacheSize().matches("\\d+[kKmMgG]?") || !config.getSPARQLCacheKeys().matches("\\d+[kKmMgG]?")) {
+            Program.xerr("SPARQL cache sizes must be whole numbers with an optional k, m or g suffix",new IllegalStateException("Invalid SPARQL cache size specified"));
+        }
+
+        if(!config.getSPARQLCacheInactive().matches("(\\d+(ms|s|m|h|d|w|M|y)?)+")) {
+            Program.xerr("SPARQL cache inactive time must be an Nginx time such as 12h or 7d",new IllegalStateException("Invalid SPARQL cache inactive time specified"));
+        }
+
+        // Hot queries are matched against incoming queries as they're written, so they must parse without the global prefixes
+        for(final Map.Entry<String,String> hot : config.getHotQueries().entrySet()) {
+            try {
+                QueryParserUtil.parseQuery(QueryLanguage.SPARQL,hot.getValue(),config.getBaseURI().toString());
+            } catch (final MalformedQueryException e) {
+                Program.xerr(String.format("Hot query %s must be a complete SPARQL query that declares its own prefixes",hot.getKey()),new IllegalStateException(String.format("Invalid hot query %s specified",hot.getKey()),e));
             }
-            excludes = Pattern.compile(excludestr.deleteCharAt(excludestr.length() - 1).toString());
-        } else {
-            excludes = null;
         }
 
-        try {
-            // Traverse and process the input directory
-            final FileVisitor<Path> directoryLoader = new SimpleFileVisitor<>() {
-                private final Deque<RDFPUBResource> resources = new LinkedList<>();
+        // Add feature sets in the order they depend on each other, which every traversal mode keeps: the manifest marks
+        // unchanged inputs before others see them; the database prepares a resource's queries before the resource file
+        // builder propagates them to descendants, and its complete() commits the last bulk or parallel loaded data
+        // before the resource file builder evaluates layout queries in its own; compression comes last, after every
+        // file it may compress is written
+        final BuildManifest manifest = new BuildManifest(config);
+        final CompressionBuilder compression = new CompressionBuilder(config);
+        final Builder[] builders = new Builder[] {
+            new FrameworkBuilder(config),
+            new ManifestBuilder(config,manifest),
+            new DatabaseBuilder(config,compression),
+            new ResourceFileBuilder(config,compression),
+            new NginxConfigBuilder(config),
+            compression
+        };
 
-                private void checkBuildError(final Exception e) {
-                    if(e != null) {
+        // Initialize list of possible build errors
+        final Queue<Exception> buildErrors = new ConcurrentLinkedQueue<>();
+
+        // Release builder resources exactly once, whether the build ends normally or watch mode is interrupted
+        final AtomicBoolean released = new AtomicBoolean(false);
+        final Runnable release = () -> {
+            if(released.compareAndSet(false,true)) {
+                for(final Builder builder : builders) {
+                    try {
+                        builder.always();
+                    } catch (final Exception e) {
                         Program.err("ERROR: %s",e.getMessage());
                         e.printStackTrace();
-                        buildErrors.add(e);
                     }
                 }
+            }
+        };
 
-                @Override
-                public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) {
-                    // Do inclusion/exclusion checks
-                    final String dirstr = dir.toString();
-                    if(includes != null && includes.matcher(dirstr).find()) {
-                        out("Directory %s is explicitly included in the build",dirstr);
-                    } else if (excludes != null && excludes.matcher(dirstr).find()) {
-                        out("Directory %s is explicitly excluded from the build",dirstr);
-                        return FileVisitResult.SKIP_SUBTREE;
-                    } else if (dirstr.contains("/.")) {
-                        out("Skipping dot directory %s", dir);
-                        return FileVisitResult.SKIP_SUBTREE;
-                    }
-
-                    // Create resource for current path
-                    final RDFPUBResource resource = new RDFPUBResource(config,config.getInputDirectory().relativize(dir));
+        try {
+            try {
+                build(config,builders,manifest,buildErrors);
+            } catch (final Exception e) {
+                Program.err("ERROR: %s",e.getMessage());
+                e.printStackTrace();
+                buildErrors.add(e);
+                return;
+            }
+            if(!watch) {
+                return;
+            }
 
-                    // Builder processing
-                    for (final Builder feature : builders) {
-                        checkBuildError(feature.handleNewResource(resource));
+            // Keep builders, database and prepared queries in memory and rebuild whenever input files change
+            Runtime.getRuntime().addShutdownHook(new Thread(release));
+            try(final InputWatcher watcher = new InputWatcher(config,WATCH_DEBOUNCE_MILLIS)) {
+                reportBuildErrors(buildErrors);
+                Program.out("Watching %s for changes",config.getInputDirectory());
+                while(true) {
+                    final Set<Path> changes = watcher.awaitChanges();
+                    if(changes.isEmpty()) {
+                        continue;
                     }
-
-                    resources.push(resource);
-                    return FileVisitResult.CONTINUE;
-                }
-
-                @Override
-                public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
-                    // Do inclusion/exclusion checks
-                    final String filestr = file.toString();
-                    if(includes != null && includes.matcher(filestr).find()) {
-                        out("File %s is explicitly included in the build",filestr);
-                    } else if (excludes != null && excludes.matcher(filestr).find()) {
-                        out("File %s is explicitly excluded from the build",filestr);
-                        return FileVisitResult.CONTINUE;
-                    } else if (filestr.contains("/.")) {
-                        out("Skipping dot file %s", file);
-                        return FileVisitResult.CONTINUE;
+                    if(changes.contains(config.getInputDirectory().resolve(".rdfpub"))) {
+                        Program.err("WARNING: .rdfpub changed; restart watch mode to apply configuration changes");
+                        changes.remove(config.getInputDirectory().resolve(".rdfpub"));
+                        if(changes.isEmpty()) {
+                            continue;
+                        }
                     }
 
-                    // Get relative path within input directory
-                    final RDFPUBResource resource = resources.peek();
-                    out("Current resource is %s",resource);
-
-                    // Builder processing
-                    for(final Builder builder : builders) {
-                        checkBuildError(builder.handleResourceFile(resource,new ResourceFile(file)));
+                    Program.out("Detected %s changed input paths; rebuilding",changes.size());
+                    final Instant start = Instant.now();
+                    buildErrors.clear();
+                    try {
+                        build(config,builders,manifest,buildErrors);
+                    } catch (final Exception e) {
+                        Program.err("ERROR: %s",e.getMessage());
+                        e.printStackTrace();
+                        buildErrors.add(e);
                     }
-
-                    return FileVisitResult.CONTINUE;
-                }
-
-                @Override
-                public FileVisitResult visitFileFailed(final Path file, final IOException e) {
-                    // Collect exception
-                    checkBuildError(e);
-                    return FileVisitResult.CONTINUE;
+                    reportBuildErrors(buildErrors);
+                    Program.out("Rebuild completed in %ss",Duration.between(start,Instant.now()).toMillis() / 1000.0);
                 }
+            }
+        } finally {
+            // Trigger final processing for builders
+            release.run();
 
-                @Override
-                public FileVisitResult postVisitDirectory(final Path dir, final IOException e) {
-                    final RDFPUBResource resource = resources.pop();
+            // Evaluate build errors, if any
+            System.exit(reportBuildErrors(buildErrors) ? 0 : 1);
+        }
+    }
 
-                    // Builder processing
-                    for(final Builder builder : builders) {
-                        checkBuildError(builder.handleFinishedResource(resource));
-                    }
+    // Run one complete build with the given builders, which are reinitialized for every build
+    private static void build(final RDFPUBConfig config, final Builder[] builders, final BuildManifest manifest, final Queue<Exception> buildErrors) throws Exception {
+        // Initialize features
+        for(final Builder builder : builders) {
+            builder.init();
+        }
 
-                    return FileVisitResult.CONTINUE;
-                }
-            };
+        // Traverse and process the input directory
+        ResourceTraversal.of(config,builders,buildErrors).traverse();
 
-            Files.walkFileTree(config.getInputDirectory(), directoryLoader);
+        // Finish features
+        for(final Builder builder : builders) {
+            builder.complete();
+        }
 
-            // Finish features
-            for(final Builder builder : builders) {
-                builder.complete();
-            }
-        } finally {
-            // Trigger final processing for builders
-            for(final Builder builder : builders) {
-                builder.always();
-            }
+        // Record inputs for the next incremental build only once this one has fully succeeded
+        if(config.isIncremental() && buildErrors.isEmpty()) {
+            manifest.save();
+        }
+    }
 
-            // Evaluate build errors, if any
-            if(!buildErrors.isEmpty()) {
-                Program.out("%s build errors encountered.",buildErrors.size());
-                for(final Exception e : buildErrors) {
-                    Program.out("  %s",e.getMessage());
-                }
-                System.exit(1);
-            } else {
-                Program.out("No build errors! :)");
-                System.exit(0);
+    private static boolean reportBuildErrors(final Queue<Exception> buildErrors) {
+        if(!buildErrors.isEmpty()) {
+            Program.out("%s build errors encountered.",buildErrors.size());
+            for(final Exception e : buildErrors) {
+                Program.out("  %s",e.getMessage());
             }
+            return false;
+        } else {
+            Program.out("No build errors! :)");
+            return true;
         }
     }
 }
@@ -0,0 +1,165 @@
+package pub.rdf.builder;
+
+import pub.rdf.config.RDFPUBConfig;
+import pub.rdf.resource.RDFPUBResource;
+import pub.rdf.resource.ResourceFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import static pub.rdf.util.Program.out;
+
+// Precompresses output files as other builders write them, on a pool sized to the available cores.
+// Files get a .gz sibling, and a .br sibling when the brotli command is available, unless they're
+// smaller than CompressMinSize or compression wouldn't make them any smaller.
+public class CompressionBuilder extends ConfigurableBuilder {
+    private final static String RESOURCE_FILES = "(/data\\.jsonld$)|(/data\\.nt$)|(/data\\.rdf$)|(/data\\.ttl$)|(/index@[^.]+\\.html$)|(/\\.sparql/[^/]+$)";
+
+    private final Pattern compressed;
+    private final boolean brotli;
+    private final Queue<Future<?>> pending = new ConcurrentLinkedQueue<>();
+    private ExecutorService compressors = null;
+
+    public CompressionBuilder(final RDFPUBConfig config) {
+        super(config);
+
+        // Resource RDF and HTML files are always compressed, in addition to user-specified files
+        compressed = Pattern.compile(config.getCompressFiles().stream().reduce(RESOURCE_FILES,(pattern,regex) -> pattern + "|(?:" + regex + ")"));
+
+        // Look for a brotli command like the one the site build used to run
+        final String path = System.getenv("PATH");
+        brotli = path != null && Stream.of(path.split(File.pathSeparator)).anyMatch(dir -> Files.isExecutable(Path.of(dir,"brotli")));
+    }
+
+    @Override
+    public void init() {
+        pending.clear();
+        if(compressors == null) {
+            final AtomicInteger threads = new AtomicInteger(0);
+            compressors = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),runnable -> {
+                final Thread thread = new Thread(runnable,"rdfpub-compressor-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        if(!brotli) {
+            out("No brotli command found; only gzip files will be precompressed");
+        }
+    }
+
+    // Wait for all compression started during this build
+    @Override
+    public void complete() throws Exception {
+        Exception error = null;
+        Future<?> compression;
+        while((compression = pending.poll()) != null) {
+            try {
+                compression.get();
+            } catch (final ExecutionException e) {
+                final Exception ex = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                if(error == null) {
+                    error = ex;
+                } else {
+                    error.addSuppressed(ex);
+                }
+            }
+        }
+        if(error != null) {
+            throw error;
+        }
+    }
+
+    @Override
+    public void always() {
+        if(compressors != null) {
+            compressors.shutdownNow();
+        }
+    }
+
+    // Queue a freshly written output file for compression if it matches the compressed file patterns
+    public void compress(final Path file) {
+        if(compressed.matcher(file.toString()).find()) {
+            pending.add(compressors.submit(() -> {
+                compressFile(file);
+                return null;
+            }));
+        }
+    }
+
+    private void compressFile(final Path file) throws IOException {
+        final Path gz = file.resolveSibling(file.getFileName() + ".gz");
+        final Path br = file.resolveSibling(file.getFileName() + ".br");
+        final long size = Files.size(file);
+        if(size < config.getCompressMinSize()) {
+            Files.deleteIfExists(gz);
+            Files.deleteIfExists(br);
+            return;
+        }
+
+        // Compress at the same levels as the gzip and brotli commands used to
+        final Path gztmp = gz.resolveSibling(gz.getFileName() + ".tmp");
+        try(final InputStream in = Files.newInputStream(file); final OutputStream zip = new GZIPOutputStream(Files.newOutputStream(gztmp),65536) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            in.transferTo(zip);
+        }
+        keepIfSmaller(gztmp,gz,size);
+
+        if(brotli) {
+            final Path brtmp = br.resolveSibling(br.getFileName() + ".tmp");
+            try {
+                final Process process = new ProcessBuilder("brotli","-9","-f","-o",brtmp.toString(),file.toString())
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+                if(process.waitFor() != 0) {
+                    Files.deleteIfExists(brtmp);
+                    throw new IOException(String.format("brotli failed to compress %s",file));
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Files.deleteIfExists(brtmp);
+                throw new IOException(String.format("Interrupted while compressing %s",file),e);
+            }
+            keepIfSmaller(brtmp,br,size);
+        }
+    }
+
+    private static void keepIfSmaller(final Path tmp, final Path target, final long size) throws IOException {
+        if(Files.size(tmp) < size) {
+            Files.move(tmp,target,StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            Files.delete(tmp);
+            Files.deleteIfExists(target);
+        }
+    }
+
+    @Override
+    public Exception handleNewResource(final RDFPUBResource resource) {
+        return null;
+    }
+
+    @Override
+    public Exception handleResourceFile(final RDFPUBResource resource, final ResourceFile file) {
+        return null;
+    }
+
+    @Override
+    public Exception handleFinishedResource(final RDFPUBResource resource) {
+        return null;
+    }
+}
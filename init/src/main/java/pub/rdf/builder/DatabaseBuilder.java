@@ -5,19 +5,27 @@ import org.eclipse.rdf4j.model.*;
 import org.eclipse.rdf4j.model.impl.SimpleNamespace;
 import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
 import org.eclipse.rdf4j.model.vocabulary.RDF;
-import org.eclipse.rdf4j.query.MalformedQueryException;
-import org.eclipse.rdf4j.query.QueryLanguage;
-import org.eclipse.rdf4j.query.parser.QueryPrologLexer;
+import org.eclipse.rdf4j.common.exception.RDF4JException;
+import org.eclipse.rdf4j.query.*;
+import org.eclipse.rdf4j.query.impl.IteratingTupleQueryResult;
+import org.eclipse.rdf4j.query.resultio.sparqljson.SPARQLBooleanJSONWriter;
+import org.eclipse.rdf4j.query.resultio.sparqljson.SPARQLResultsJSONWriter;
+import org.eclipse.rdf4j.query.resultio.sparqlxml.SPARQLBooleanXMLWriter;
+import org.eclipse.rdf4j.query.resultio.sparqlxml.SPARQLResultsXMLWriter;
 import org.eclipse.rdf4j.repository.Repository;
 import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.RepositoryResult;
 import org.eclipse.rdf4j.repository.sail.SailRepository;
 import org.eclipse.rdf4j.rio.RDFHandler;
 import org.eclipse.rdf4j.rio.RDFHandlerException;
 import org.eclipse.rdf4j.rio.RDFParseException;
 import org.eclipse.rdf4j.rio.RDFParser;
+import org.eclipse.rdf4j.rio.RDFWriter;
+import org.eclipse.rdf4j.rio.Rio;
 import org.eclipse.rdf4j.rio.helpers.AbstractRDFHandler;
 import org.eclipse.rdf4j.rio.helpers.BasicParserSettings;
 import org.eclipse.rdf4j.rio.helpers.BasicWriterSettings;
+import org.eclipse.rdf4j.rio.helpers.RDFHandlerWrapper;
 import org.eclipse.rdf4j.rio.jsonld.JSONLDParser;
 import org.eclipse.rdf4j.rio.jsonld.JSONLDWriter;
 import org.eclipse.rdf4j.rio.ntriples.NTriplesParser;
@@ -26,22 +34,42 @@ import org.eclipse.rdf4j.rio.rdfxml.RDFXMLParser;
 import org.eclipse.rdf4j.rio.rdfxml.RDFXMLWriter;
 import org.eclipse.rdf4j.rio.turtle.TurtleParser;
 import org.eclipse.rdf4j.rio.turtle.TurtleWriter;
+import org.eclipse.rdf4j.sail.Sail;
 import org.eclipse.rdf4j.sail.lmdb.LmdbStore;
 import org.eclipse.rdf4j.sail.lmdb.config.LmdbStoreConfig;
+import org.eclipse.rdf4j.sail.memory.MemoryStore;
 import org.eclipse.rdf4j.sail.nativerdf.NativeStore;
 import pub.rdf.config.RDFPUBConfig;
+import pub.rdf.query.DocumentFetcher;
+import pub.rdf.query.IndexAdvisor;
+import pub.rdf.query.PreparedQuery;
 import pub.rdf.resource.ResourceFile;
 import pub.rdf.util.DCTerms;
 import pub.rdf.resource.RDFPUBResource;
+import pub.rdf.runtime.BuildStatistics;
 import pub.rdf.util.Program;
 import pub.rdf.util.SD;
 import pub.rdf.util.VOID;
 
 import java.io.*;
 import java.net.URI;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -50,15 +78,67 @@ import static pub.rdf.util.Program.out;
 public class DatabaseBuilder extends ConfigurableBuilder {
     public final static BNode SDROOT = SimpleValueFactory.getInstance().createBNode("sdroot");
     public final static BNode DATASET = SimpleValueFactory.getInstance().createBNode("dataset");
+    private final static String TRIPLE_INDEXES = "cspo,spoc,posc";
+
+    // Writers for the RDF files of resources, keyed by file extension
+    private final static Map<String,Function<OutputStream,RDFWriter>> RDF_WRITERS = Map.of(
+        "nt", NTriplesWriter::new,
+        "ttl", TurtleWriter::new,
+        "rdf", RDFXMLWriter::new,
+        "jsonld", JSONLDWriter::new
+    );
+
+    // Resources with fewer statements are exported to all formats on a single thread
+    private final static long FAN_OUT_STATEMENTS = 10000;
+
+    // LMDB map sizes are whole pages and never smaller than the store's own defaults
+    private final static long LMDB_PAGE_SIZE = 4096;
+    private final static long LMDB_MIN_MAP_SIZE = 10L * 1024 * 1024;
 
     private final Path dbdir;
+    private final CompressionBuilder compression;
+    private Repository database = null;
+    private String tripleIndexes = TRIPLE_INDEXES;
     private RepositoryConnection connection = null;
     private final Set<Namespace> namespaces = new HashSet<>(16);
-    private final StringBuilder prefixStringBuilder = new StringBuilder(512);
-
-    public DatabaseBuilder(final RDFPUBConfig config) {
+    private final Set<String> graphs = ConcurrentHashMap.newKeySet(256);
+
+    // The shared connection is written to under this lock; exports read through per-thread connections
+    private final Object writeLock = new Object();
+    private final Queue<RepositoryConnection> readConnections = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<RepositoryConnection> readConnection = ThreadLocal.withInitial(() -> {
+        final RepositoryConnection reader = database.getConnection();
+        readConnections.add(reader);
+        return reader;
+    });
+
+    // Bulk loading state, guarded by the write lock: statements and bytes in the open batch and resources awaiting export
+    private long batchStatements = 0;
+    private long batchBytes = 0;
+    private final List<RDFPUBResource> batchResources = new ArrayList<>(256);
+
+    // Parallel loading state: the loader of this build, RDF files still loading per resource and all outstanding work
+    private ParallelLoader loader = null;
+    private final Map<String,Queue<CompletableFuture<Void>>> loads = new ConcurrentHashMap<>(256);
+    private final Queue<CompletableFuture<Void>> pending = new ConcurrentLinkedQueue<>();
+
+    // Threads for per-format writers of large exports
+    private final ExecutorService exportThreads = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable,"rdfpub-export");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Prepared queries keyed by their full text, kept across watch mode rebuilds
+    private final Map<String,PreparedQuery> preparedQueries = new ConcurrentHashMap<>(64);
+
+    // Fetcher of external documents for queries with GRAPH patterns, when fetching is enabled
+    private DocumentFetcher fetcher = null;
+
+    public DatabaseBuilder(final RDFPUBConfig config, final CompressionBuilder compression) {
         super(config);
         this.dbdir = config.getOutputDirectory().resolve("db");
+        this.compression = compression;
 
         // Collect prefixes as RDF4J namespaces
         namespaces.addAll(config.getPrefixes().entrySet().stream().map(prefix -> new SimpleNamespace(prefix.getKey(),prefix.getValue())).collect(Collectors.toSet()));
@@ -66,15 +146,41 @@ public class DatabaseBuilder extends ConfigurableBuilder {
 
     @Override
     public void init() throws IOException {
-        // Create repository
-        Files.createDirectory(dbdir);
-        final Repository database = new SailRepository(new NativeStore(dbdir.toFile(), "cspo,spoc,posc"));
-        database.init();
-        connection = database.getConnection();
+        // Create repository, or reopen the previous one for incremental builds; watch mode keeps it open between builds
+        if(connection == null) {
+            Files.createDirectories(dbdir);
+
+            // Index the store for the triple patterns of the input queries, or the default indexes without a budget
+            if(config.getTripleIndexBudget() > 0) {
+                tripleIndexes = String.join(",",IndexAdvisor.scan(config).advise(config.getTripleIndexBudget()));
+                out("Using triple indexes %s",tripleIndexes);
+            }
+
+            database = new SailRepository(config.isInMemoryBuild() ? new MemoryStore() : createStore(dbdir,config.isBulkLoad()));
+            database.init();
+            connection = database.getConnection();
+
+            // Incremental builds in memory start from the data persisted by the previous build
+            if(config.isInMemoryBuild() && config.isIncremental()) {
+                restoreStore();
+            }
+        }
+        graphs.clear();
+
+        // Fetch external documents into a cache that outlives builds, revalidating them once per build
+        if(config.getFetchRounds() > 0) {
+            if(fetcher == null) {
+                fetcher = new DocumentFetcher(config.getOutputDirectory().resolve("fetch-cache"),config.getFetchEndpoint(),config.getFetchThreads(),Duration.ofSeconds(config.getFetchTimeout()));
+            }
+            fetcher.reset();
+        }
 
         // Initial data
         connection.begin(IsolationLevels.NONE);
 
+        // Service description metadata is regenerated on every build
+        connection.clear(config.getSPARQLEndpoint());
+
         // Define namespaces
         connection.clearNamespaces();
         for(final Map.Entry<String,String> namespace : config.getPrefixes().entrySet()) {
@@ -89,10 +195,215 @@ public class DatabaseBuilder extends ConfigurableBuilder {
 
         // Commit changes
         connection.commit();
+
+        // Parse RDF files on a worker pool, with a single thread writing their statements to the database
+        loads.clear();
+        pending.clear();
+        if(config.getParseThreads() > 1) {
+            loader = new ParallelLoader(config,connection,writeLock);
+        }
+    }
+
+    private Sail createStore(final Path dir, final boolean bulk) throws IOException {
+        if(config.getStoreBackend().equals("lmdb")) {
+            // Bulk loads skip syncing on every commit and are synced once they're complete
+            discardStoreUnless(dir,dir.resolve("triples"));
+            final long bytes = inputRDFBytes();
+            final LmdbStoreConfig lmdb = new LmdbStoreConfig(tripleIndexes);
+            lmdb.setTripleDBSize(mapSize(bytes * 6));
+            lmdb.setValueDBSize(mapSize(bytes * 4));
+            lmdb.setForceSync(!bulk);
+            out("Sized LMDB store for %s bytes of RDF files",bytes);
+            return new LmdbStore(dir.toFile(), lmdb);
+        }
+
+        // The native store doesn't sync on commit by default, in bulk loads or not; it's synced once the build completes
+        discardStoreUnless(dir,dir.resolve("nativerdf.ver"));
+        return new NativeStore(dir.toFile(), tripleIndexes);
+    }
+
+    // A database left by a previous build with another store backend can't be reopened, so start over
+    private void discardStoreUnless(final Path dir, final Path marker) throws IOException {
+        try(final Stream<Path> files = Files.list(dir)) {
+            if(Files.exists(marker) || files.allMatch(file -> file.getFileName().toString().equals("config.ttl"))) {
+                return;
+            }
+        }
+        Program.err("WARNING: Existing database in %s uses a different store backend; discarding it",dir);
+        deleteContents(dir);
+    }
+
+    // Force the files of a store written without syncing to disk, in one flush at the end of the load
+    private static void syncContents(final Path dir) throws IOException {
+        try(final Stream<Path> files = Files.walk(dir)) {
+            for(final Path file : files.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                try(final FileChannel channel = FileChannel.open(file,StandardOpenOption.READ)) {
+                    channel.force(true);
+                }
+            }
+        }
+    }
+
+    private static void deleteContents(final Path dir) throws IOException {
+        try(final Stream<Path> files = Files.walk(dir)) {
+            for(final Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                if(!file.equals(dir)) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    // Copy the database persisted by the previous build into memory
+    private void restoreStore() throws IOException {
+        final Repository store = new SailRepository(createStore(dbdir,false));
+        store.init();
+        try(final RepositoryConnection reader = store.getConnection()) {
+            connection.begin(IsolationLevels.NONE);
+            try(final RepositoryResult<Namespace> prefixes = reader.getNamespaces()) {
+                for(final Namespace namespace : prefixes) {
+                    connection.setNamespace(namespace.getPrefix(),namespace.getName());
+                }
+            }
+            try(final RepositoryResult<Statement> statements = reader.getStatements(null,null,null,false)) {
+                connection.add(statements);
+            }
+            connection.commit();
+            out("Restored %s RDF triples from the previous build into memory",connection.size());
+        } finally {
+            store.shutDown();
+        }
+    }
+
+    // Stream the in-memory database into a new store beside the previous one in a single transaction, then swap it in
+    // by renames, so that a crash at any point leaves either database on disk
+    private void persistStore() throws IOException {
+        final Instant start = Instant.now();
+        final Path tmpdir = dbdir.resolveSibling(dbdir.getFileName() + ".tmp");
+        Files.createDirectories(tmpdir);
+        deleteContents(tmpdir);
+        final Repository store = new SailRepository(createStore(tmpdir,true));
+        store.init();
+        try(final RepositoryConnection writer = store.getConnection()) {
+            writer.begin(IsolationLevels.NONE);
+            try(final RepositoryResult<Namespace> prefixes = connection.getNamespaces()) {
+                for(final Namespace namespace : prefixes) {
+                    writer.setNamespace(namespace.getPrefix(),namespace.getName());
+                }
+            }
+            try(final RepositoryResult<Statement> statements = connection.getStatements(null,null,null,false)) {
+                writer.add(statements);
+            }
+            writer.commit();
+        } finally {
+            store.shutDown();
+        }
+        syncContents(tmpdir);
+
+        // A database set aside by an earlier build that crashed before deleting it is no longer needed
+        final Path olddir = dbdir.resolveSibling(dbdir.getFileName() + ".old");
+        if(Files.exists(olddir)) {
+            deleteContents(olddir);
+            Files.delete(olddir);
+        }
+        if(Files.exists(dbdir)) {
+            Files.move(dbdir,olddir,StandardCopyOption.ATOMIC_MOVE);
+        }
+        Files.move(tmpdir,dbdir,StandardCopyOption.ATOMIC_MOVE);
+        if(Files.exists(olddir)) {
+            deleteContents(olddir);
+            Files.delete(olddir);
+        }
+        out("Persisted %s RDF triples from memory in %ss",connection.size(),Duration.between(start,Instant.now()).toMillis() / 1000.0);
+    }
+
+    private long inputRDFBytes() throws IOException {
+        try(final Stream<Path> files = Files.walk(config.getInputDirectory())) {
+            return files.filter(file -> Files.isRegularFile(file) && new ResourceFile(file).isRDF()).mapToLong(file -> file.toFile().length()).sum();
+        }
+    }
+
+    private static long mapSize(final long estimate) {
+        return Math.max(LMDB_MIN_MAP_SIZE,(estimate + LMDB_PAGE_SIZE - 1) / LMDB_PAGE_SIZE * LMDB_PAGE_SIZE);
+    }
+
+    private static long directorySize(final Path dir) throws IOException {
+        try(final Stream<Path> files = Files.walk(dir)) {
+            return files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum();
+        }
+    }
+
+    // Repository config for the SPARQL server, matching the store this build wrote and with its caches sized for
+    // the dataset; the server only reads, so it never needs to sync
+    private String repositoryConfig(final DatasetStatistics stats) throws IOException {
+        // Value caches share the cache memory three to one, and every namespace fits where there are few enough
+        final long budget = config.getStoreCacheMemory();
+        final long valueCache = cacheSize(stats.getValues(),512,budget * 3 / 4 / stats.getAverageValueBytes());
+        final long valueIDCache = cacheSize(stats.getValues(),128,budget / 4 / (stats.getAverageValueBytes() + 32));
+        final long namespaceCache = cacheSize(stats.getNamespaces(),64,65536);
+        final long namespaceIDCache = cacheSize(stats.getNamespaces(),32,65536);
+
+        // Results of queries over a whole graph are kept in memory rather than synced to disk
+        final long syncThreshold = Math.min(1000000,Math.max(10000,stats.getLargestGraph()));
+
+        final String summary = String.join("\n",
+            String.format("# %s statements in %s graphs of %s statements on average and %s at most",stats.getStatements(),stats.getGraphs(),stats.getAverageGraph(),stats.getLargestGraph()),
+            String.format("# About %s distinct values of %s bytes on average, literals %s bytes on average, in about %s namespaces",stats.getValues(),stats.getAverageValueBytes(),stats.getAverageLiteralBytes(),stats.getNamespaces()),
+            String.format("# Value cache %s, value ID cache %s, namespace cache %s, namespace ID cache %s, iteration cache sync threshold %s",valueCache,valueIDCache,namespaceCache,namespaceIDCache,syncThreshold),
+            ""
+        );
+        out(summary.replaceAll("(?m)^# ","").trim());
+
+        final String repositoryConfig;
+        if(config.getStoreBackend().equals("lmdb")) {
+            // The runtime server only reads, so twice the loaded size leaves ample headroom
+            repositoryConfig = Program.readResource("config-lmdb.ttl")
+                .replace("$TRIPLE_DB_SIZE",Long.toString(mapSize(directorySize(dbdir.resolve("triples")) * 2)))
+                .replace("$VALUE_DB_SIZE",Long.toString(mapSize(directorySize(dbdir.resolve("values")) * 2)));
+        } else {
+            repositoryConfig = Program.readResource("config.ttl");
+        }
+        return summary + repositoryConfig
+            .replace("$TRIPLE_INDEXES",tripleIndexes)
+            .replace("$ITERATION_CACHE_SYNC_THRESHOLD",Long.toString(syncThreshold))
+            .replace("$VALUE_CACHE_SIZE",Long.toString(valueCache))
+            .replace("$VALUE_ID_CACHE_SIZE",Long.toString(valueIDCache))
+            .replace("$NAMESPACE_CACHE_SIZE",Long.toString(namespaceCache))
+            .replace("$NAMESPACE_ID_CACHE_SIZE",Long.toString(namespaceIDCache));
+    }
+
+    // Enough entries for every distinct item within a limit, but never fewer than the store's own default
+    private static long cacheSize(final long items, final long min, final long max) {
+        return Math.min(Integer.MAX_VALUE,Math.max(min,Math.min(items,max)));
     }
 
     @Override
     public void complete() throws IOException {
+        // Wait for parallel loading, in case the traversal ended before the root resource finished
+        if(loader != null) {
+            final Exception e = awaitLoads();
+            loader.close();
+            loader = null;
+            if(e != null) {
+                throw new IOException("Unable to load RDF data",e);
+            }
+        }
+
+        // Commit any remaining bulk load batch and export its resources
+        if(config.isBulkLoad()) {
+            final List<RDFPUBResource> exports;
+            synchronized(writeLock) {
+                exports = commitBatch();
+                if(connection.isActive()) {
+                    connection.commit();
+                }
+            }
+            final Exception e = exportAll(exports);
+            if(e != null) {
+                throw new IOException("Unable to write RDF files for bulk loaded resources",e);
+            }
+        }
+
         // Finalize the SPARQL service description
         final ValueFactory rdf = SimpleValueFactory.getInstance();
         final BNode dn = rdf.createBNode();
@@ -122,13 +433,156 @@ public class DatabaseBuilder extends ConfigurableBuilder {
             throw new IOException("Unable to write RDF files for SPARQL endpoint",e);
         }
 
-        // Write out the config for this database
-        Files.writeString(dbdir.resolve("config.ttl"),Program.readResource("config.ttl"));
+        // Answer hot queries ahead of time for Nginx to serve
+        writeHotQueries();
+
+        // Write the database built in memory to disk for the runtime server
+        if(config.isInMemoryBuild()) {
+            persistStore();
+        }
+
+        // Write out the statistics and config for this database, tuned for its contents
+        final DatasetStatistics stats = DatasetStatistics.gather(connection);
+        stats.getCardinalities().write(dbdir.resolve(BuildStatistics.FILENAME));
+        Files.writeString(dbdir.resolve("config.ttl"),repositoryConfig(stats));
+
+        // Admission limits for the runtime SPARQL server, which reads them from next to the store
+        Files.writeString(dbdir.resolve("server.properties"),String.format("threads=%s\nqueue=%s\ntimeout=%s\n",config.getSPARQLConcurrency(),config.getSPARQLQueue(),config.getSPARQLMaxQueryTime()));
+
+        // Bulk loads and the native store commit without syncing, so the store is made durable once, now that it's complete
+        if(!config.isInMemoryBuild()) {
+            syncContents(dbdir);
+        }
+
+        // Release read connections of this build's worker threads
+        closeReadConnections();
     }
 
     @Override
     public void always() {
-        connection.close();
+        if(loader != null) {
+            loader.close();
+            loader = null;
+        }
+        exportThreads.shutdown();
+        closeReadConnections();
+        if(fetcher != null) {
+            fetcher.close();
+            fetcher = null;
+        }
+        if(connection != null) {
+            connection.close();
+            database.shutDown();
+        }
+    }
+
+    // Begin a transaction for changes, or join the open bulk load batch
+    private void begin() {
+        if(!config.isBulkLoad() || !connection.isActive()) {
+            connection.begin(IsolationLevels.NONE);
+        }
+    }
+
+    // Commit changes, unless they belong to a bulk load batch that commits by size
+    private void commit() {
+        if(!config.isBulkLoad()) {
+            connection.commit();
+        }
+    }
+
+    private boolean batchFull() {
+        return batchStatements >= config.getBulkLoadStatements() || batchBytes >= config.getBulkLoadBytes();
+    }
+
+    // Commit the open batch, then record metadata for the resources it finished and hand them back for export
+    private List<RDFPUBResource> commitBatch() {
+        if(connection.isActive()) {
+            connection.commit();
+        }
+        if(batchStatements > 0) {
+            out("Committed batch of %s RDF triples from %s bytes of RDF files",batchStatements,batchBytes);
+        }
+        batchStatements = 0;
+        batchBytes = 0;
+
+        final List<RDFPUBResource> finished = new ArrayList<>(batchResources);
+        batchResources.clear();
+        if(!finished.isEmpty()) {
+            begin();
+            for(final RDFPUBResource resource : finished) {
+                addResourceMetadata(resource);
+            }
+        }
+        return finished;
+    }
+
+    private Exception exportAll(final List<RDFPUBResource> resources) {
+        Exception error = null;
+        for(final RDFPUBResource resource : resources) {
+            final Exception e = exportResource(resource);
+            if(e != null && error == null) {
+                error = e;
+            } else if(e != null) {
+                error.addSuppressed(e);
+            }
+        }
+        return error;
+    }
+
+    // Apply a change to the database, through the writer thread when loading in parallel
+    private void change(final Consumer<RepositoryConnection> change) {
+        if(loader != null) {
+            pending.add(loader.write(change));
+            return;
+        }
+        synchronized(writeLock) {
+            begin();
+            change.accept(connection);
+            commit();
+        }
+    }
+
+    // Wait until everything submitted for parallel loading is written and exported; every error is reported once
+    private Exception awaitLoads() {
+        loader.finish();
+        final Set<Throwable> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Exception error = null;
+        CompletableFuture<Void> future;
+        while((future = pending.poll()) != null) {
+            try {
+                future.join();
+            } catch (final CompletionException | CancellationException e) {
+                final Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                if(!seen.add(cause)) {
+                    continue;
+                }
+                final Exception ex = cause instanceof Exception ? (Exception) cause : new Exception(cause);
+                if(error == null) {
+                    error = ex;
+                } else {
+                    Program.err("ERROR: %s",ex.getMessage());
+                    error.addSuppressed(ex);
+                }
+            }
+        }
+        return error;
+    }
+
+    private RepositoryConnection readConnection() {
+        // Read connections are closed at the end of each build, so reopen as needed
+        RepositoryConnection reader = readConnection.get();
+        if(!reader.isOpen()) {
+            readConnection.remove();
+            reader = readConnection.get();
+        }
+        return reader;
+    }
+
+    private void closeReadConnections() {
+        RepositoryConnection reader;
+        while((reader = readConnections.poll()) != null) {
+            reader.close();
+        }
     }
 
     @Override
@@ -136,6 +590,13 @@ public class DatabaseBuilder extends ConfigurableBuilder {
         // Set data flag for SPARQL endpoint resource which always has data
         if(resource.equals(config.getSPARQLEndpoint())) {
             resource.hasData(true);
+            return null;
+        }
+
+        // Drop the previous build's graph for resources whose RDF files changed
+        graphs.add(resource.stringValue());
+        if(config.isIncremental() && resource.dataChanged()) {
+            change(connection -> connection.clear(resource));
         }
         return null;
     }
@@ -162,35 +623,14 @@ public class DatabaseBuilder extends ConfigurableBuilder {
             case "sparql":
             case "rq":
                 try {
-                    // Find existing namespaces in query
-                    final String query = Files.readString(file.getPath());
-                    final Set<String> queryPrefixes = QueryPrologLexer
-                        .lex(query)
-                        .stream()
-                        .filter(token -> token.getType() == QueryPrologLexer.TokenType.PREFIX)
-                        .map(QueryPrologLexer.Token::getStringValue)
-                        .collect(Collectors.toSet())
-                    ;
-
-                    // Create set of global prefixes with existing query prefixes removed
-                    prefixStringBuilder.setLength(0);
-                    final String globalPrefixes = config
-                        .getPrefixes()
-                        .entrySet()
-                        .stream()
-                        .filter(prefix -> !queryPrefixes.contains(prefix.getKey()))
-                        .reduce(prefixStringBuilder,(sb, prefix) ->
-                            sb.append("PREFIX ")
-                            .append(prefix.getKey())
-                            .append(": <")
-                            .append(prefix.getValue())
-                            .append(">\n"),
-                        StringBuilder::append)
-                        .toString()
-                    ;
+                    final String query = PreparedQuery.withPrefixes(Files.readString(file.getPath()),config.getPrefixes());
 
                     // Prepare query with prepended with undefined prefixes
-                    resource.getQueries().putIfAbsent(file.getName(), connection.prepareTupleQuery(QueryLanguage.SPARQL, globalPrefixes + query, config.getBaseURI().toString()));
+                    final PreparedQuery prepared;
+                    synchronized(writeLock) {
+                        prepared = preparedQueries.computeIfAbsent(query, text -> new PreparedQuery(connection, text, config.getBaseURI().toString(), fetcher, config.getFetchRounds()));
+                    }
+                    resource.getQueries().putIfAbsent(file.getName(), prepared);
                 } catch (final MalformedQueryException e) {
                     return new MalformedQueryException(String.format("%s is not a valid SPARQL tuple query, ignoring", file));
                 } catch (final IOException e) {
@@ -207,6 +647,27 @@ public class DatabaseBuilder extends ConfigurableBuilder {
                 return null;
             }
 
+            // Data of unchanged resources is already in the database from the previous build
+            if(!resource.dataChanged()) {
+                resource.hasData(true);
+                return null;
+            }
+
+            // Initialize namespaces
+            parser.getParserConfig().set(BasicParserSettings.NAMESPACES,namespaces);
+
+            if(loader != null) {
+                final CompletableFuture<Void> loaded = loader.load(resource,file,parser);
+                loads.computeIfAbsent(resource.stringValue(),graph -> new ConcurrentLinkedQueue<>()).add(loaded);
+                pending.add(loaded);
+                resource.hasData(true);
+                return null;
+            }
+
+            if(config.isBulkLoad()) {
+                return bulkLoad(resource,file,parser);
+            }
+
             // Set handler
             parser.setRDFHandler(new AbstractRDFHandler() {
                 int triples = 0;
@@ -227,14 +688,19 @@ public class DatabaseBuilder extends ConfigurableBuilder {
                 }
             });
 
-            // Initialize namespaces
-            parser.getParserConfig().set(BasicParserSettings.NAMESPACES,namespaces);
-
             // Commit data
-            try {
-                connection.begin(IsolationLevels.NONE);
-                parser.parse(new FileInputStream(file.getPath().toFile()), resource.toString());
-                connection.commit();
+            try(final InputStream in = new FileInputStream(file.getPath().toFile())) {
+                synchronized(writeLock) {
+                    connection.begin(IsolationLevels.NONE);
+                    try {
+                        parser.parse(in, resource.toString());
+                        connection.commit();
+                    } finally {
+                        if(connection.isActive()) {
+                            connection.rollback();
+                        }
+                    }
+                }
                 resource.hasData(true);
             } catch (final RDFParseException e) {
                 return new RDFParseException("File " + file.getPath().toString() + " is not valid syntax for its file extension.",e);
@@ -245,100 +711,275 @@ public class DatabaseBuilder extends ConfigurableBuilder {
         return null;
     }
 
+    // Parse a whole file before adding it to the open batch, so that a bad file never leaves partial data behind
+    private Exception bulkLoad(final RDFPUBResource resource, final ResourceFile file, final RDFParser parser) {
+        final List<Statement> statements = new ArrayList<>(1024);
+        parser.setRDFHandler(new AbstractRDFHandler() {
+            @Override
+            public void handleNamespace(final String name, final String prefix) {
+                resource.getPrefixes().put(name, prefix);
+            }
+
+            @Override
+            public void handleStatement(final Statement st) {
+                statements.add(st);
+            }
+        });
+
+        final long bytes;
+        try(final InputStream in = new BufferedInputStream(new FileInputStream(file.getPath().toFile()))) {
+            bytes = Files.size(file.getPath());
+            parser.parse(in, resource.toString());
+        } catch (final RDFParseException e) {
+            return new RDFParseException("File " + file.getPath().toString() + " is not valid syntax for its file extension.",e);
+        } catch (final IOException e) {
+            return new IOException(String.format("Error reading file %s during RDF parsing",file),e);
+        }
+
+        final List<RDFPUBResource> exports;
+        synchronized(writeLock) {
+            begin();
+            connection.add(statements,resource);
+            batchStatements += statements.size();
+            batchBytes += bytes;
+            exports = batchFull() ? commitBatch() : Collections.emptyList();
+        }
+        resource.hasData(true);
+        out("Added %s RDF triples to %s", statements.size(), resource);
+        return exportAll(exports);
+    }
+
     @Override
     public Exception handleFinishedResource(final RDFPUBResource resource) {
+        // The root resource finishes last, so any graph not seen by now belongs to a deleted resource
+        if(config.isIncremental() && resource.isRootResource()) {
+            synchronized(writeLock) {
+                final List<Resource> orphans = new ArrayList<>();
+                try(final RepositoryResult<Resource> contexts = connection.getContextIDs()) {
+                    for(final Resource context : contexts) {
+                        if(!graphs.contains(context.stringValue()) && !context.equals(config.getSPARQLEndpoint())) {
+                            orphans.add(context);
+                        }
+                    }
+                }
+                if(!orphans.isEmpty()) {
+                    out("Removing %s graphs of deleted resources from the database",orphans.size());
+                    change(connection -> connection.clear(orphans.toArray(new Resource[0])));
+                }
+            }
+        }
+
+        // Remove stale RDF files of resources that no longer have any data
+        if(config.isIncremental() && resource.dataChanged() && !resource.hasData()) {
+            try {
+                for(final String filename : new String[] { "data.nt", "data.ttl", "data.rdf", "data.jsonld" }) {
+                    final Path data = resource.getResourcePath().resolve(filename);
+                    Files.deleteIfExists(data);
+                    Files.deleteIfExists(data.resolveSibling(filename + ".gz"));
+                    Files.deleteIfExists(data.resolveSibling(filename + ".br"));
+                }
+            } catch (final IOException e) {
+                return new IOException(String.format("Failed to remove stale RDF files for <%s>",resource),e);
+            }
+        }
+
         // Generate static resource RDF from database
         if (resource.hasData() && !resource.equals(config.getSPARQLEndpoint())) {
-            // Initialize local variables
-            final ValueFactory rdf = SimpleValueFactory.getInstance();
+            // In parallel loads, resources get metadata and RDF files once all their files are committed
+            if(loader != null) {
+                final Queue<CompletableFuture<Void>> files = loads.remove(resource.stringValue());
+                final CompletableFuture<?>[] loaded = files == null ? new CompletableFuture<?>[0] : files.toArray(new CompletableFuture<?>[0]);
+                final ParallelLoader current = loader;
+                pending.add(CompletableFuture.allOf(loaded).thenRunAsync(() -> {
+                    pending.add(current.write(connection -> addResourceMetadata(resource)));
+                    final Exception e = exportResource(resource);
+                    if(e != null) {
+                        throw new CompletionException(e);
+                    }
+                },current.executor()));
+                return resource.isRootResource() ? awaitLoads() : null;
+            }
 
-            // Add resource metadata
-            final BNode rn = rdf.createBNode();
-            final BNode gn = rdf.createBNode();
-            connection.begin(IsolationLevels.NONE);
-            connection.add(rdf.createStatement(DATASET, SD.NAMEDGRAPH, rn, config.getSPARQLEndpoint()));
-            connection.add(rdf.createStatement(rn, RDF.TYPE, SD.NAMEDGRAPHCLASS, config.getSPARQLEndpoint()));
-            connection.add(rdf.createStatement(rn, SD.NAME, resource, config.getSPARQLEndpoint()));
-            connection.add(rdf.createStatement(rn, SD.GRAPH, gn, config.getSPARQLEndpoint()));
-            connection.add(rdf.createStatement(gn, RDF.TYPE, SD.GRAPHCLASS, config.getSPARQLEndpoint()));
-            connection.add(rdf.createStatement(gn, VOID.TRIPLES, rdf.createLiteral(connection.size(resource)), config.getSPARQLEndpoint()));
-            connection.add(rdf.createStatement(rn, DCTerms.CREATED, rdf.createLiteral(new Date()), config.getSPARQLEndpoint()));
-            connection.commit();
+            // Bulk loaded resources get metadata and RDF files once their batch is committed
+            if(config.isBulkLoad()) {
+                final List<RDFPUBResource> exports;
+                synchronized(writeLock) {
+                    batchResources.add(resource);
+                    exports = batchFull() ? commitBatch() : Collections.emptyList();
+                }
+                return exportAll(exports);
+            }
 
-            // Write out RDF files for resource
-            return writeRDF(resource, Stream.concat(resource.getPrefixes().entrySet().stream(),config.getPrefixes().entrySet().stream())
-                .collect(Collectors.toMap(Map.Entry::getKey,Map.Entry::getValue,(r,g) -> r)));
+            synchronized(writeLock) {
+                connection.begin(IsolationLevels.NONE);
+                addResourceMetadata(resource);
+                connection.commit();
+            }
+            return exportResource(resource);
         }
-        return null;
+        return loader != null && resource.isRootResource() ? awaitLoads() : null;
+    }
+
+    // Describe a resource's named graph in the SPARQL endpoint service description
+    private void addResourceMetadata(final RDFPUBResource resource) {
+        final ValueFactory rdf = SimpleValueFactory.getInstance();
+        final BNode rn = rdf.createBNode();
+        final BNode gn = rdf.createBNode();
+        connection.add(rdf.createStatement(DATASET, SD.NAMEDGRAPH, rn, config.getSPARQLEndpoint()));
+        connection.add(rdf.createStatement(rn, RDF.TYPE, SD.NAMEDGRAPHCLASS, config.getSPARQLEndpoint()));
+        connection.add(rdf.createStatement(rn, SD.NAME, resource, config.getSPARQLEndpoint()));
+        connection.add(rdf.createStatement(rn, SD.GRAPH, gn, config.getSPARQLEndpoint()));
+        connection.add(rdf.createStatement(gn, RDF.TYPE, SD.GRAPHCLASS, config.getSPARQLEndpoint()));
+        connection.add(rdf.createStatement(gn, VOID.TRIPLES, rdf.createLiteral(connection.size(resource)), config.getSPARQLEndpoint()));
+        connection.add(rdf.createStatement(rn, DCTerms.CREATED, rdf.createLiteral(new Date()), config.getSPARQLEndpoint()));
+    }
+
+    private Exception exportResource(final RDFPUBResource resource) {
+        // Write out RDF files for resource unless they're up to date from the previous build
+        if(!resource.dataChanged() && Files.exists(resource.getResourcePath().resolve("data." + config.getRDFFormats(resource.getURIPath()).get(0)))) {
+            out("RDF files for <%s> are up to date",resource);
+            return null;
+        }
+        return writeRDF(resource, Stream.concat(resource.getPrefixes().entrySet().stream(),config.getPrefixes().entrySet().stream())
+            .collect(Collectors.toMap(Map.Entry::getKey,Map.Entry::getValue,(r,g) -> r)));
     }
 
     private Exception writeRDF(final IRI resource, final Map<String,String> prefixes) {
-        final Path outputPath = config.getOutputDirectory().resolve("resources").resolve("." + URI.create(resource.stringValue()).getPath()).normalize();
-        final NTriplesWriter nt;
-        final TurtleWriter ttl;
-        final RDFXMLWriter rdfxml;
-        final JSONLDWriter jsonld;
+        final String uriPath = URI.create(resource.stringValue()).getPath();
+        final Path outputPath = config.getOutputDirectory().resolve("resources").resolve("." + uriPath).normalize();
+        final List<String> formats = config.getRDFFormats(uriPath);
+        final List<OutputStream> streams = new ArrayList<>(formats.size());
+        final List<RDFWriter> writers = new ArrayList<>(formats.size());
         try {
-            // Create writers
-            nt = new NTriplesWriter(new BufferedOutputStream(new FileOutputStream(outputPath.resolve("data.nt").toFile())));
-            ttl = new TurtleWriter(new BufferedOutputStream(new FileOutputStream(outputPath.resolve("data.ttl").toFile())));
-            rdfxml = new RDFXMLWriter(new BufferedOutputStream(new FileOutputStream(outputPath.resolve("data.rdf").toFile())));
-            jsonld = new JSONLDWriter(new BufferedOutputStream(new FileOutputStream(outputPath.resolve("data.jsonld").toFile())));
-
-            // Configure writers
-            nt.set(BasicWriterSettings.INLINE_BLANK_NODES,true);
-            ttl.set(BasicWriterSettings.INLINE_BLANK_NODES,true);
-            rdfxml.set(BasicWriterSettings.INLINE_BLANK_NODES,true);
-            jsonld.set(BasicWriterSettings.INLINE_BLANK_NODES,true);
-
-            nt.set(BasicWriterSettings.PRETTY_PRINT,true);
-            ttl.set(BasicWriterSettings.PRETTY_PRINT,true);
-            rdfxml.set(BasicWriterSettings.PRETTY_PRINT,true);
-            jsonld.set(BasicWriterSettings.PRETTY_PRINT,true);
-        } catch (final FileNotFoundException ex) {
+            // Resource directories may not have been created yet when builders are pipelined
+            Files.createDirectories(outputPath);
+
+            // Create and configure writers for the selected formats, and remove files of formats that aren't
+            for(final String format : RDF_WRITERS.keySet()) {
+                final Path data = outputPath.resolve("data." + format);
+                if(!formats.contains(format)) {
+                    Files.deleteIfExists(data);
+                    Files.deleteIfExists(data.resolveSibling(data.getFileName() + ".gz"));
+                    Files.deleteIfExists(data.resolveSibling(data.getFileName() + ".br"));
+                    continue;
+                }
+                final OutputStream stream = new BufferedOutputStream(Files.newOutputStream(data));
+                streams.add(stream);
+                final RDFWriter writer = RDF_WRITERS.get(format).apply(stream);
+                writer.set(BasicWriterSettings.INLINE_BLANK_NODES,true);
+                writer.set(BasicWriterSettings.PRETTY_PRINT,true);
+                writers.add(writer);
+            }
+        } catch (final IOException ex) {
+            closeAll(streams);
             return new Exception(String.format("Cannot output serialized resource RDF for <%s> to file", resource), ex);
         }
-        connection.export(new RDFHandler() {
-            @Override
-            public void startRDF() throws RDFHandlerException {
-                // Initialize writers
-                nt.startRDF();
-                ttl.startRDF();
-                rdfxml.startRDF();
-                jsonld.startRDF();
 
-                // Feed prefixes into RDF output
-                prefixes.forEach(this::handleNamespace);
-            }
+        // Large resources are read once and fanned out to one thread per format, so the slowest format sets the pace
+        final RepositoryConnection reader = readConnection();
+        final FanOutRDFHandler fanOut = writers.size() > 1 && reader.size(resource) >= FAN_OUT_STATEMENTS ? new FanOutRDFHandler(exportThreads,writers) : null;
+        Exception error = null;
+        try {
+            reader.export(new RDFHandlerWrapper(fanOut != null ? new RDFHandler[] { fanOut } : writers.toArray(new RDFHandler[0])) {
+                @Override
+                public void startRDF() throws RDFHandlerException {
+                    super.startRDF();
 
-            @Override
-            public void endRDF() throws RDFHandlerException {
-                nt.endRDF();
-                ttl.endRDF();
-                rdfxml.endRDF();
-                jsonld.endRDF();
+                    // Feed prefixes into RDF output
+                    prefixes.forEach(this::handleNamespace);
+                }
+
+                @Override
+                public void handleComment(final String comment) throws RDFHandlerException {
+                    // noop
+                }
+            },resource);
+        } catch (final RuntimeException e) {
+            error = new Exception(String.format("Cannot output serialized resource RDF for <%s> to file", resource), e);
+        } finally {
+            if(fanOut != null) {
+                fanOut.close();
             }
+        }
 
-            @Override
-            public void handleNamespace(final String prefix, final String name) throws RDFHandlerException {
-                ttl.handleNamespace(prefix, name);
-                rdfxml.handleNamespace(prefix, name);
-                jsonld.handleNamespace(prefix, name);
+        final IOException e = closeAll(streams);
+        if(error == null && e != null) {
+            error = new Exception(String.format("Cannot output serialized resource RDF for <%s> to file", resource), e);
+        }
+
+        // Precompress the finished files
+        if(error == null) {
+            for(final String format : formats) {
+                compression.compress(outputPath.resolve("data." + format));
             }
+        }
+        return error;
+    }
 
-            @Override
-            public void handleStatement(final Statement st) throws RDFHandlerException {
-                nt.handleStatement(st);
-                ttl.handleStatement(st);
-                rdfxml.handleStatement(st);
-                jsonld.handleStatement(st);
+    // Evaluate every hot query once and write its answer in each format the endpoint negotiates for its query form
+    private void writeHotQueries() throws IOException {
+        // Answers to hot queries that are no longer declared go away
+        final Path hotdir = config.getOutputDirectory().resolve("resources").resolve(HotQueries.DIRECTORY);
+        Files.createDirectories(hotdir);
+        deleteContents(hotdir);
+        for(final Map.Entry<String,String> hot : config.getHotQueries().entrySet()) {
+            final String name = hot.getKey();
+            try {
+                final Query query = connection.prepareQuery(QueryLanguage.SPARQL,hot.getValue(),config.getBaseURI().toString());
+                // Hot queries aren't layout queries, so limits for query files of the same name don't apply to them
+                query.setMaxExecutionTime(config.getDefaultQueryLimit().timeout());
+                final List<HotQueries.Format> formats = HotQueries.formats(config,hot.getValue());
+                if(query instanceof TupleQuery) {
+                    final List<String> bindingNames;
+                    final List<BindingSet> solutions;
+                    try(final TupleQueryResult result = ((TupleQuery) query).evaluate()) {
+                        bindingNames = result.getBindingNames();
+                        solutions = QueryResults.asList(result);
+                    }
+                    for(final HotQueries.Format format : formats) {
+                        try(final OutputStream out = new BufferedOutputStream(Files.newOutputStream(HotQueries.file(config,name,format)))) {
+                            QueryResults.report(new IteratingTupleQueryResult(bindingNames,solutions),format.extension().equals("srj") ? new SPARQLResultsJSONWriter(out) : new SPARQLResultsXMLWriter(out));
+                        }
+                    }
+                } else if(query instanceof BooleanQuery) {
+                    final boolean answer = ((BooleanQuery) query).evaluate();
+                    for(final HotQueries.Format format : formats) {
+                        try(final OutputStream out = new BufferedOutputStream(Files.newOutputStream(HotQueries.file(config,name,format)))) {
+                            (format.extension().equals("srj") ? new SPARQLBooleanJSONWriter(out) : new SPARQLBooleanXMLWriter(out)).handleBoolean(answer);
+                        }
+                    }
+                } else {
+                    final Model model = QueryResults.asModel(((GraphQuery) query).evaluate());
+                    namespaces.forEach(model::setNamespace);
+                    for(final HotQueries.Format format : formats) {
+                        try(final OutputStream out = new BufferedOutputStream(Files.newOutputStream(HotQueries.file(config,name,format)))) {
+                            Rio.write(model,RDF_WRITERS.get(format.extension()).apply(out));
+                        }
+                    }
+                }
+                for(final HotQueries.Format format : formats) {
+                    compression.compress(HotQueries.file(config,name,format));
+                }
+                out("Precomputed answers to hot query %s",name);
+            } catch (final RDF4JException e) {
+                throw new IOException(String.format("Unable to answer hot query %s",name),e);
             }
+        }
+    }
 
-            @Override
-            public void handleComment(final String comment) throws RDFHandlerException {
-                // noop
+    private static IOException closeAll(final List<OutputStream> streams) {
+        IOException error = null;
+        for(final OutputStream stream : streams) {
+            try {
+                stream.close();
+            } catch (final IOException e) {
+                if(error == null) {
+                    error = e;
+                } else {
+                    error.addSuppressed(e);
+                }
             }
-        },resource);
-        return null;
+        }
+        return error;
     }
 }
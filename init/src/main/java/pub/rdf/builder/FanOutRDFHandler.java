@@ -0,0 +1,163 @@
+package pub.rdf.builder;
+
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.rio.RDFHandler;
+import org.eclipse.rdf4j.rio.RDFHandlerException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+// Feeds one stream of RDF to several handlers, each running on its own thread behind a bounded buffer.
+// Statements are passed on in chunks, so the reading thread only blocks when the slowest handler falls behind.
+final class FanOutRDFHandler implements RDFHandler, AutoCloseable {
+    private final static int CHUNK_SIZE = 1024;
+    private final static int BUFFERED_CHUNKS = 16;
+
+    private final class Lane implements Runnable {
+        private final RDFHandler handler;
+        private final BlockingQueue<Consumer<RDFHandler>> queue = new ArrayBlockingQueue<>(BUFFERED_CHUNKS);
+        private boolean finished = false;
+        private RuntimeException error = null;
+
+        private Lane(final RDFHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while(true) {
+                    final Consumer<RDFHandler> event = queue.take();
+                    if(event == END) {
+                        break;
+                    }
+
+                    // Keep draining after a failure so that the reading thread never blocks on this lane
+                    if(error == null) {
+                        try {
+                            event.accept(handler);
+                        } catch (final RuntimeException e) {
+                            error = e;
+                        }
+                    }
+                }
+            } catch (final InterruptedException e) {
+                error = new RDFHandlerException("Interrupted while writing RDF",e);
+            } finally {
+                synchronized(this) {
+                    finished = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        private void send(final Consumer<RDFHandler> event) {
+            try {
+                queue.put(event);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RDFHandlerException("Interrupted while writing RDF",e);
+            }
+        }
+
+        private synchronized RuntimeException await() throws InterruptedException {
+            while(!finished) {
+                wait();
+            }
+            return error;
+        }
+    }
+
+    private final static Consumer<RDFHandler> END = handler -> {};
+
+    private final List<Lane> lanes;
+    private List<Statement> chunk = new ArrayList<>(CHUNK_SIZE);
+    private boolean ended = false;
+
+    FanOutRDFHandler(final Executor executor, final List<? extends RDFHandler> handlers) {
+        this.lanes = new ArrayList<>(handlers.size());
+        for(final RDFHandler handler : handlers) {
+            final Lane lane = new Lane(handler);
+            lanes.add(lane);
+            executor.execute(lane);
+        }
+    }
+
+    private void send(final Consumer<RDFHandler> event) {
+        for(final Lane lane : lanes) {
+            lane.send(event);
+        }
+    }
+
+    private void flush() {
+        if(!chunk.isEmpty()) {
+            final List<Statement> statements = chunk;
+            chunk = new ArrayList<>(CHUNK_SIZE);
+            send(handler -> statements.forEach(handler::handleStatement));
+        }
+    }
+
+    @Override
+    public void startRDF() throws RDFHandlerException {
+        send(RDFHandler::startRDF);
+    }
+
+    // Waits for every handler to finish, and fails with the first handler error if there was any
+    @Override
+    public void endRDF() throws RDFHandlerException {
+        flush();
+        send(RDFHandler::endRDF);
+        ended = true;
+        send(END);
+
+        RuntimeException error = null;
+        for(final Lane lane : lanes) {
+            try {
+                final RuntimeException e = lane.await();
+                if(e != null && error == null) {
+                    error = e;
+                } else if(e != null) {
+                    error.addSuppressed(e);
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RDFHandlerException("Interrupted while writing RDF",e);
+            }
+        }
+        if(error != null) {
+            throw error;
+        }
+    }
+
+    @Override
+    public void handleNamespace(final String prefix, final String uri) throws RDFHandlerException {
+        flush();
+        send(handler -> handler.handleNamespace(prefix, uri));
+    }
+
+    @Override
+    public void handleStatement(final Statement st) throws RDFHandlerException {
+        chunk.add(st);
+        if(chunk.size() >= CHUNK_SIZE) {
+            flush();
+        }
+    }
+
+    @Override
+    public void handleComment(final String comment) throws RDFHandlerException {
+        // noop
+    }
+
+    // Releases the handler threads if the RDF stream broke off before endRDF()
+    @Override
+    public void close() {
+        if(!ended) {
+            ended = true;
+            send(END);
+        }
+    }
+}
@@ -12,7 +12,7 @@ import java.time.Duration;
 import java.time.Instant;
 
 public class FrameworkBuilder extends ConfigurableBuilder {
-    private final Instant start = Instant.now();
+    private Instant start = Instant.now();
 
     public FrameworkBuilder(final RDFPUBConfig config) {
         super(config);
@@ -21,11 +21,19 @@ public class FrameworkBuilder extends ConfigurableBuilder {
     @Override
     public void init() throws Exception {
         // Output beginning of build status
+        start = Instant.now();
         Program.out("Beginning build");
         Program.out("Input directory is %s",config.getInputDirectory());
         Program.out("Output directory is %s",config.getOutputDirectory());
         Program.out("Base URI is %s",config.getBaseURI());
 
+        // Incremental builds update the existing output directory in place
+        if(config.isIncremental()) {
+            Program.out("Output directory will be updated incrementally");
+            Files.createDirectories(config.getOutputDirectory());
+            return;
+        }
+
         // Get output directory and deletion policy
         final boolean deleteOutputDirectoryBeforeBuild = config.cleanOutputDirectory();
 
@@ -0,0 +1,44 @@
+package pub.rdf.builder;
+
+import org.eclipse.rdf4j.query.QueryLanguage;
+import org.eclipse.rdf4j.query.parser.ParsedGraphQuery;
+import org.eclipse.rdf4j.query.parser.ParsedQuery;
+import org.eclipse.rdf4j.query.parser.QueryParserUtil;
+import pub.rdf.config.RDFPUBConfig;
+
+import java.nio.file.Path;
+import java.util.List;
+
+// Hot queries are declared by name in .rdfpub, answered at build time in every format the endpoint's query
+// profile negotiates to and served by Nginx as static files under /.sparql/ when the same query comes in. They are
+// answered as they're written, without the global prefixes, since that's how the endpoint would answer them.
+final class HotQueries {
+    final static String DIRECTORY = ".sparql";
+
+    // A file written for a hot query and the negotiated types that it answers
+    record Format(String extension, String contentType, List<String> accepts) {}
+
+    private final static List<Format> RESULT_FORMATS = List.of(
+        new Format("srj","application/sparql-results+json",List.of("application/sparql-results+json","application/json")),
+        new Format("srx","application/sparql-results+xml",List.of("application/xml"))
+    );
+
+    private final static List<Format> RDF_FORMATS = List.of(
+        new Format("ttl","text/turtle",List.of("text/turtle")),
+        new Format("jsonld","application/ld+json",List.of("application/ld+json","application/json")),
+        new Format("rdf","application/rdf+xml",List.of("application/rdf+xml","application/xml")),
+        new Format("nt","text/ntriples",List.of("text/ntriples"))
+    );
+
+    private HotQueries() {}
+
+    // CONSTRUCT and DESCRIBE queries are answered as RDF, SELECT and ASK queries as SPARQL results
+    static List<Format> formats(final RDFPUBConfig config, final String query) {
+        final ParsedQuery parsed = QueryParserUtil.parseQuery(QueryLanguage.SPARQL,query,config.getBaseURI().toString());
+        return parsed instanceof ParsedGraphQuery ? RDF_FORMATS : RESULT_FORMATS;
+    }
+
+    static Path file(final RDFPUBConfig config, final String name, final Format format) {
+        return config.getOutputDirectory().resolve("resources").resolve(DIRECTORY).resolve(name + "." + format.extension());
+    }
+}
@@ -0,0 +1,164 @@
+package pub.rdf.builder;
+
+import pub.rdf.config.RDFPUBConfig;
+import pub.rdf.manifest.BuildManifest;
+import pub.rdf.resource.RDFPUBResource;
+import pub.rdf.resource.ResourceFile;
+import pub.rdf.traversal.ResourceFilter;
+import pub.rdf.util.Program;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Stream;
+
+import static pub.rdf.util.Program.out;
+
+public class ManifestBuilder extends ConfigurableBuilder {
+    private final BuildManifest manifest;
+    private final ResourceFilter filter;
+    private final Queue<RDFPUBResource> resources = new ConcurrentLinkedQueue<>();
+
+    public ManifestBuilder(final RDFPUBConfig config, final BuildManifest manifest) {
+        super(config);
+        this.manifest = manifest;
+        this.filter = new ResourceFilter(config);
+    }
+
+    private static void deleteRecursively(final Path path) throws IOException {
+        if(!Files.exists(path)) {
+            return;
+        }
+        try(final Stream<Path> paths = Files.walk(path)) {
+            for(final Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    // Remove a generated file along with any precompressed siblings
+    private void deleteOutput(final String relpath) throws IOException {
+        final Path output = config.getOutputDirectory().resolve("resources").resolve(relpath);
+        Files.deleteIfExists(output);
+        Files.deleteIfExists(output.resolveSibling(output.getFileName() + ".gz"));
+        Files.deleteIfExists(output.resolveSibling(output.getFileName() + ".br"));
+    }
+
+    @Override
+    public void init() throws IOException {
+        if(!config.isIncremental()) {
+            return;
+        }
+
+        resources.clear();
+        try {
+            manifest.load();
+        } catch (final IOException e) {
+            throw new IOException("Error while reading build manifest",e);
+        }
+
+        if(manifest.hasPrevious()) {
+            Program.out("Building incrementally against previous build manifest");
+        } else {
+            Program.out("No usable build manifest found; all resources will be rebuilt");
+        }
+    }
+
+    @Override
+    public void complete() throws IOException {
+        if(!config.isIncremental()) {
+            return;
+        }
+
+        // Remove outputs of resources that no longer exist
+        final Set<String> removed = manifest.getRemovedDirectories();
+        for(final String dir : removed) {
+            out("Removing outputs of deleted resource directory %s",dir);
+            deleteRecursively(config.getOutputDirectory().resolve("resources").resolve(dir));
+            deleteRecursively(config.getOutputDirectory().resolve("layouts").resolve(dir));
+        }
+
+        // Queries may read any graph, so any data change invalidates every query result
+        boolean datasetChanged = !removed.isEmpty();
+        for(final RDFPUBResource resource : resources) {
+            datasetChanged |= resource.dataChanged();
+        }
+
+        if(datasetChanged) {
+            out("Site data changed; queries will be re-evaluated for all resources");
+            for(final RDFPUBResource resource : resources) {
+                resource.layoutChanged(true);
+            }
+        }
+    }
+
+    @Override
+    public void always() {
+        // noop
+    }
+
+    @Override
+    public Exception handleNewResource(final RDFPUBResource resource) {
+        if(!config.isIncremental()) {
+            return null;
+        }
+
+        resources.add(resource);
+        manifest.addDirectory(resource.getInputPath());
+
+        // Compare the files directly within this resource directory against the previous build
+        boolean dataChanged = false;
+        boolean layoutChanged = false;
+        final Set<String> previousFiles = new HashSet<>(manifest.getPreviousFiles(resource.getInputPath()));
+        try(final DirectoryStream<Path> entries = Files.newDirectoryStream(resource.getInputPath())) {
+            for(final Path entry : entries) {
+                if(Files.isDirectory(entry,LinkOption.NOFOLLOW_LINKS) || !filter.isAccepted(entry)) {
+                    continue;
+                }
+
+                previousFiles.remove(config.getInputDirectory().relativize(entry).toString());
+                final ResourceFile file = new ResourceFile(entry);
+                if(!manifest.update(entry)) {
+                    resource.getUnchangedFiles().add(entry);
+                } else if(file.isRDF()) {
+                    dataChanged = true;
+                } else if(file.isQuery() || file.isTemplate()) {
+                    layoutChanged = true;
+                }
+            }
+
+            // Account for files that were deleted since the previous build
+            for(final String relpath : previousFiles) {
+                final ResourceFile file = new ResourceFile(Path.of(relpath));
+                if(file.isRDF()) {
+                    dataChanged = true;
+                } else if(file.isQuery() || file.isTemplate()) {
+                    layoutChanged = true;
+                } else {
+                    out("Removing output of deleted file %s",relpath);
+                    deleteOutput(relpath);
+                }
+            }
+        } catch (final IOException e) {
+            return new IOException(String.format("Error while comparing files of <%s> against the build manifest",resource),e);
+        }
+
+        resource.dataChanged(dataChanged);
+        resource.layoutChanged(layoutChanged);
+        return null;
+    }
+
+    @Override
+    public Exception handleResourceFile(final RDFPUBResource resource, final ResourceFile file) {
+        return null;
+    }
+
+    @Override
+    public Exception handleFinishedResource(final RDFPUBResource resource) {
+        return null;
+    }
+}
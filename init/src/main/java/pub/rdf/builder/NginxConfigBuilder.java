@@ -6,10 +6,12 @@ import pub.rdf.resource.ResourceFile;
 import pub.rdf.util.Program;
 
 import java.io.IOException;
+import java.io.Writer;
 import java.net.URI;
 import java.nio.file.*;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.regex.Pattern;
 
 public class NginxConfigBuilder extends ConfigurableBuilder {
@@ -18,9 +20,32 @@ public class NginxConfigBuilder extends ConfigurableBuilder {
     private final Path connegconf;
     private final Pattern compressed;
     private final Map<String,String> types = new HashMap<>(256);
-    private final StringBuilder rconf = new StringBuilder(4096);
-    private final StringBuilder lconf = new StringBuilder(4096);
-    boolean configuredSPARQLEndpoint = false;
+    private final static Map<String,String> RDF_TYPES = Map.of(
+        "jsonld", "application/ld+json",
+        "nt", "text/ntriples",
+        "rdf", "application/rdf+xml",
+        "ttl", "text/turtle"
+    );
+    // Per-resource configs keyed by URI path so that output order doesn't depend on traversal order
+    private final Map<String,StringBuilder> locations = new ConcurrentSkipListMap<>();
+    private final Map<String,String> languages = new ConcurrentSkipListMap<>();
+    volatile boolean configuredSPARQLEndpoint = false;
+
+    // Append locations for the RDF files written for a resource with data
+    private void appendRDFLocations(final StringBuilder rconf, final String uriPath, final String slash) {
+        for(final String format : config.getRDFFormats(uriPath)) {
+            rconf
+                .append("location = ")
+                .append(uriPath)
+                .append(slash)
+                .append("data.")
+                .append(format)
+                .append(" { add_header Content-Type \"")
+                .append(RDF_TYPES.get(format))
+                .append("\"; include static-compressed.nginx.conf; }\n")
+            ;
+        }
+    }
 
     private void copyConfigToOutput(final String filename) throws IOException {
         Files.writeString(nginxdir.resolve(filename),Program.readResource(filename));
@@ -49,10 +74,25 @@ public class NginxConfigBuilder extends ConfigurableBuilder {
 
     @Override
     public void init() throws Exception {
-        // Create/write special files and directories
-        Files.createDirectory(nginxdir);
-        Files.writeString(nginxdir.resolve("nginx.conf"),Program.readResource("nginx.conf").replace("$DEFAULT_LANG",config.getDefaultLanguage()).replace("$SERVER_NAME",config.getBaseURI().getHost()));
-        Files.createFile(locationsconf);
+        // Start from scratch when rebuilding in watch mode
+        locations.clear();
+        languages.clear();
+        configuredSPARQLEndpoint = false;
+
+        // Create/write special files and directories, which are regenerated in full even for incremental builds
+        Files.createDirectories(nginxdir);
+        Files.writeString(nginxdir.resolve("nginx.conf"),Program.readResource("nginx.conf")
+            .replace("$DEFAULT_LANG",config.getDefaultLanguage())
+            .replace("$SERVER_NAME",config.getBaseURI().getHost())
+            .replace("$SPARQL_CACHE_KEYS",config.getSPARQLCacheKeys())
+            .replace("$SPARQL_CACHE_SIZE",config.getSPARQLCacheSize())
+            .replace("$SPARQL_CACHE_INACTIVE",config.getSPARQLCacheInactive())
+            .replace("$SPARQL_CACHE",config.isSPARQLCache() ? "sparql" : "off")
+            .replace("$SPARQL_LIMIT_CONN",config.getSPARQLClientConnections() > 0 ? String.format("limit_conn sparqlclient %s;",config.getSPARQLClientConnections()) : "# No per-client limit")
+            .replace("$SPARQL_ADMITTED",Integer.toString(config.getSPARQLConcurrency() + config.getSPARQLQueue()))
+            .replace("$SPARQL_READ_TIMEOUT",(config.getSPARQLMaxQueryTime() + 5) + "s")
+        );
+        Files.writeString(locationsconf,"");
         Files.writeString(connegconf,Program.readResource(connegconf.getFileName().toString()));
 
         // Copy static configs verbatim
@@ -67,40 +107,76 @@ public class NginxConfigBuilder extends ConfigurableBuilder {
 
     @Override
     public void complete() throws IOException {
-        // Cap off content negotiation config
-        Files.writeString(connegconf,"}",StandardOpenOption.APPEND);
+        // Write out collected resource location and language configs
+        try(final Writer writer = Files.newBufferedWriter(locationsconf,StandardOpenOption.APPEND)) {
+            for(final StringBuilder rconf : locations.values()) {
+                writer.append(rconf);
+            }
+        } catch (final IOException e) {
+            throw new IOException("Failed to write Nginx resource locations config",e);
+        }
+
+        try(final Writer writer = Files.newBufferedWriter(connegconf,StandardOpenOption.APPEND)) {
+            for(final String lconf : languages.values()) {
+                writer.append(lconf);
+            }
+
+            // Register hot queries by their text as long Lua strings, which Nginx normalizes when it starts like incoming queries
+            for(final Map.Entry<String,String> hot : config.getHotQueries().entrySet()) {
+                String level = "";
+                while(hot.getValue().contains("]" + level + "]")) {
+                    level += "=";
+                }
+                writer.append("  sparql_hot[normalize_query([").append(level).append("[").append(hot.getValue()).append("\n]").append(level).append("])] = { name = \"").append(hot.getKey()).append("\", types = { ");
+                for(final HotQueries.Format format : HotQueries.formats(config,hot.getValue())) {
+                    for(final String accept : format.accepts()) {
+                        writer.append("[\"").append(accept).append("\"] = \"").append(format.extension()).append("\", ");
+                    }
+                }
+                writer.append("} }\n");
+            }
+
+            // Cap off content negotiation config
+            writer.append("}");
+        } catch (final IOException e) {
+            throw new IOException("Failed to write Nginx content negotiation config",e);
+        }
+
+        // Internal locations of the precomputed answers to hot queries
+        final StringBuilder hconf = new StringBuilder(256);
+        for(final String name : config.getHotQueries().keySet()) {
+            for(final HotQueries.Format format : HotQueries.formats(config,config.getHotQueries().get(name))) {
+                hconf
+                    .append("location = /")
+                    .append(HotQueries.DIRECTORY)
+                    .append("/")
+                    .append(name)
+                    .append(".")
+                    .append(format.extension())
+                    .append(" { internal; add_header Content-Type \"")
+                    .append(format.contentType())
+                    .append("\"; add_header Vary \"Accept\"; include static-compressed.nginx.conf; }\n")
+                ;
+            }
+        }
+        try {
+            Files.writeString(locationsconf,hconf.toString(),StandardOpenOption.APPEND);
+        } catch (final IOException e) {
+            throw new IOException("Failed to append Nginx config for hot queries",e);
+        }
 
         // Output SPARQL endpoint configuration if not already configured
         if(!this.configuredSPARQLEndpoint) {
             Program.out("Appending SPARQL endpoint Nginx config");
-            rconf.setLength(0);
+            final StringBuilder rconf = new StringBuilder(1024);
             String sparqlPath = URI.create(config.getSPARQLEndpoint().toString()).getPath();
             final String slash = sparqlPath.charAt(sparqlPath.length() - 1) == '/' ? "" : "/";
             rconf
                 .append("location = ")
                 .append(sparqlPath)
                 .append(" { include sparql-endpoint.nginx.conf; include data-only.nginx.conf; }\n")
-
-                .append("location = ")
-                .append(sparqlPath)
-                .append(slash)
-                .append("data.jsonld { add_header Content-Type \"application/ld+json\"; include static-compressed.nginx.conf; }\n")
-
-                .append("location = ")
-                .append(sparqlPath)
-                .append(slash)
-                .append("data.nt { add_header Content-Type \"text/ntriples\"; include static-compressed.nginx.conf; }\n")
-
-                .append("location = ")
-                .append(sparqlPath)
-                .append(slash)
-                .append("data.rdf { include add_header Content-Type \"application/rdf+xml\"; static-compressed.nginx.conf; }\n")
-
-                .append("location = ")
-                .append(sparqlPath)
-                .append(slash)
-                .append("data.ttl { include add_header Content-Type \"text/turtle\"; static-compressed.nginx.conf; }\n")
             ;
+            appendRDFLocations(rconf,sparqlPath,slash);
 
             try {
                 Files.writeString(locationsconf,rconf.toString(),StandardOpenOption.APPEND);
@@ -142,8 +218,9 @@ public class NginxConfigBuilder extends ConfigurableBuilder {
                     if(isCompressed) {
                         Program.out("Enabling compression for file %s",file);
                     }
-                    rconf.setLength(0);
-                    rconf
+
+                    // A resource's files and the resource itself are always handled by the same thread
+                    locations.computeIfAbsent(resource.getURIPath(),path -> new StringBuilder(1024))
                         .append("location = ")
                         .append(resource.isRootResource() ? "" : resource.getURIPath())
                         .append("/")
@@ -154,9 +231,6 @@ public class NginxConfigBuilder extends ConfigurableBuilder {
                         .append(isCompressed ? "-compressed" : "")
                         .append(".nginx.conf; }\n")
                     ;
-                    Files.writeString(locationsconf,rconf.toString(),StandardOpenOption.APPEND);
-                } catch (final IOException e) {
-                    return new IOException(String.format("Failed to append Nginx config for %s",resource),e);
                 } catch (final Exception e) {
                     return new Exception(String.format("Exception while attempting to write Nginx config for %s",resource));
                 }
@@ -166,10 +240,9 @@ public class NginxConfigBuilder extends ConfigurableBuilder {
 
     @Override
     public Exception handleFinishedResource(final RDFPUBResource resource) {
-
-        // Reset StringBuilders
-        rconf.setLength(0);
-        lconf.setLength(0);
+        // Initialize StringBuilders
+        final StringBuilder rconf = new StringBuilder(1024);
+        final StringBuilder lconf = new StringBuilder(256);
 
         // Determine root slash
         final String slash = resource.isRootResource() ? "" : "/";
@@ -185,27 +258,7 @@ public class NginxConfigBuilder extends ConfigurableBuilder {
         final boolean hasData = resource.hasData() || isSPARQLEndpoint;
         if(hasData) {
             // Append static RDF representations
-            rconf
-                .append("location = ")
-                .append(resource.getURIPath())
-                .append(slash)
-                .append("data.jsonld { add_header Content-Type \"application/ld+json\"; include static-compressed.nginx.conf; }\n")
-
-                .append("location = ")
-                .append(resource.getURIPath())
-                .append(slash)
-                .append("data.nt { add_header Content-Type \"text/ntriples\"; include static-compressed.nginx.conf; }\n")
-
-                .append("location = ")
-                .append(resource.getURIPath())
-                .append(slash)
-                .append("data.rdf { add_header Content-Type \"application/rdf+xml\"; include static-compressed.nginx.conf; }\n")
-
-                .append("location = ")
-                .append(resource.getURIPath())
-                .append(slash)
-                .append("data.ttl { add_header Content-Type \"text/turtle\"; include static-compressed.nginx.conf; }\n")
-            ;
+            appendRDFLocations(rconf,resource.getURIPath(),slash);
         }
 
         // Handle resource index templates
@@ -266,18 +319,12 @@ public class NginxConfigBuilder extends ConfigurableBuilder {
             return null; // don't write anything for 'blank' resources
         }
 
-        try {
-            // Write resource location config
-            Files.writeString(locationsconf,rconf.append("\n").toString(),StandardOpenOption.APPEND);
+        // Collect resource location config
+        locations.computeIfAbsent(resource.getURIPath(),path -> new StringBuilder(1024)).append(rconf.append("\n"));
 
-            // Write language config if the resource has index templates
-            if(hasIndexTemplates) {
-                Files.writeString(connegconf, lconf.toString(), StandardOpenOption.APPEND);
-            }
-        } catch (final IOException e) {
-            return new IOException(String.format("Failed to append Nginx config for %s",resource),e);
-        } catch (final Exception e) {
-            return new Exception(String.format("Exception while attempting to write Nginx config for %s",resource));
+        // Collect language config if the resource has index templates
+        if(hasIndexTemplates) {
+            languages.put(resource.getURIPath(),lconf.toString());
         }
         return null;
     }
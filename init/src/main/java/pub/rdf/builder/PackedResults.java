@@ -0,0 +1,199 @@
+package pub.rdf.builder;
+
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.Triple;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.util.Literals;
+import org.eclipse.rdf4j.model.vocabulary.XSD;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.QueryResultHandlerException;
+import org.eclipse.rdf4j.query.TupleQueryResultHandler;
+import org.eclipse.rdf4j.query.TupleQueryResultHandlerException;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Collects the results of every query of a resource, for each of its languages, and writes them to one packed file
+// once they're all in. The file starts with RQB1, then a dictionary of every RDF term in the results, then each
+// query result by name and language with its variables and rows of dictionary indexes, 0 standing for unbound.
+// Counts, lengths and indexes are unsigned LEB128 varints and strings are UTF-8 prefixed by their byte length.
+final class PackedResults {
+    final static String FILENAME = "results.rqb";
+
+    private final static int IRI = 0;
+    private final static int BNODE = 1;
+    private final static int LITERAL = 2;
+    private final static int LANGUAGE_LITERAL = 3;
+    private final static int TYPED_LITERAL = 4;
+    private final static int TRIPLE = 5;
+
+    // Rows of one query result, with a rough count of the bytes they take up for result size limits
+    final static class Result implements TupleQueryResultHandler {
+        private List<String> vars = List.of();
+        private final List<BindingSet> rows = new ArrayList<>();
+        private long bytes = 0;
+
+        long bytes() {
+            return bytes;
+        }
+
+        @Override
+        public void startQueryResult(final List<String> bindingNames) throws TupleQueryResultHandlerException {
+            vars = List.copyOf(bindingNames);
+        }
+
+        @Override
+        public void handleSolution(final BindingSet bindingSet) throws TupleQueryResultHandlerException {
+            rows.add(bindingSet);
+            bindingSet.forEach(binding -> bytes += binding.getValue().stringValue().length() + 2);
+        }
+
+        @Override
+        public void endQueryResult() throws TupleQueryResultHandlerException {
+            // noop
+        }
+
+        @Override
+        public void handleBoolean(final boolean value) throws QueryResultHandlerException {
+            // noop
+        }
+
+        @Override
+        public void handleLinks(final List<String> linkUrls) throws QueryResultHandlerException {
+            // noop
+        }
+    }
+
+    private record Entry(String name, String language, Result result) {}
+
+    private final Path file;
+    private final List<Entry> entries = new ArrayList<>();
+    private int expected = 0;
+    private boolean sealed = false;
+
+    PackedResults(final Path file) {
+        this.file = file;
+    }
+
+    // Count on another query result before the resource is sealed
+    synchronized void expect() {
+        expected++;
+    }
+
+    synchronized void add(final String name, final String language, final Result result) throws IOException {
+        entries.add(new Entry(name,language,result));
+        writeIfComplete();
+    }
+
+    // No more query results will be expected
+    synchronized void seal() throws IOException {
+        sealed = true;
+        writeIfComplete();
+    }
+
+    private void writeIfComplete() throws IOException {
+        if(!sealed || entries.size() < expected || expected == 0) {
+            return;
+        }
+
+        // Number every term in the order of first use
+        final Map<Value,Integer> terms = new HashMap<>(256);
+        final List<Value> dictionary = new ArrayList<>(256);
+        for(final Entry entry : entries) {
+            for(final BindingSet row : entry.result().rows) {
+                row.forEach(binding -> term(binding.getValue(),terms,dictionary));
+            }
+        }
+
+        try(final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file),65536))) {
+            out.writeBytes("RQB1");
+            varint(out,dictionary.size());
+            for(final Value value : dictionary) {
+                if(value.isIRI()) {
+                    out.writeByte(IRI);
+                    string(out,value.stringValue());
+                } else if(value.isBNode()) {
+                    out.writeByte(BNODE);
+                    string(out,value.stringValue());
+                } else if(value.isTriple()) {
+                    final Triple triple = (Triple) value;
+                    out.writeByte(TRIPLE);
+                    varint(out,terms.get(triple.getSubject()));
+                    varint(out,terms.get(triple.getPredicate()));
+                    varint(out,terms.get(triple.getObject()));
+                } else {
+                    final Literal literal = (Literal) value;
+                    if(Literals.isLanguageLiteral(literal)) {
+                        out.writeByte(LANGUAGE_LITERAL);
+                        string(out,literal.getLabel());
+                        string(out,literal.getLanguage().orElse(""));
+                    } else if(XSD.STRING.equals(literal.getDatatype())) {
+                        out.writeByte(LITERAL);
+                        string(out,literal.getLabel());
+                    } else {
+                        out.writeByte(TYPED_LITERAL);
+                        string(out,literal.getLabel());
+                        string(out,literal.getDatatype().stringValue());
+                    }
+                }
+            }
+
+            varint(out,entries.size());
+            for(final Entry entry : entries) {
+                string(out,entry.name());
+                string(out,entry.language());
+                varint(out,entry.result().vars.size());
+                for(final String var : entry.result().vars) {
+                    string(out,var);
+                }
+                varint(out,entry.result().rows.size());
+                for(final BindingSet row : entry.result().rows) {
+                    for(final String var : entry.result().vars) {
+                        final Value value = row.getValue(var);
+                        varint(out,value == null ? 0 : terms.get(value) + 1);
+                    }
+                }
+            }
+        }
+
+        // Let go of the rows once they're written, since pages that share results keep their packs referenced
+        entries.clear();
+    }
+
+    // Terms of triples go into the dictionary before the triples themselves
+    private static void term(final Value value, final Map<Value,Integer> terms, final List<Value> dictionary) {
+        if(terms.containsKey(value)) {
+            return;
+        }
+        if(value.isTriple()) {
+            final Triple triple = (Triple) value;
+            term(triple.getSubject(),terms,dictionary);
+            term(triple.getPredicate(),terms,dictionary);
+            term(triple.getObject(),terms,dictionary);
+        }
+        terms.put(value,dictionary.size());
+        dictionary.add(value);
+    }
+
+    private static void varint(final DataOutputStream out, long value) throws IOException {
+        while((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static void string(final DataOutputStream out, final String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        varint(out,bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,217 @@
+package pub.rdf.builder;
+
+import org.eclipse.rdf4j.common.transaction.IsolationLevels;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.rio.RDFParseException;
+import org.eclipse.rdf4j.rio.RDFParser;
+import org.eclipse.rdf4j.rio.helpers.AbstractRDFHandler;
+import pub.rdf.config.RDFPUBConfig;
+import pub.rdf.resource.RDFPUBResource;
+import pub.rdf.resource.ResourceFile;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static pub.rdf.util.Program.out;
+
+// Parses RDF files on a pool of worker threads into per-file statement buffers, while a single writer
+// thread owns all changes to the shared connection and applies them in arrival order, committing in batches.
+// Without bulk loading, the writer commits whatever has queued up as soon as it runs dry; with bulk loading,
+// it waits for a full batch until finish() is called.
+final class ParallelLoader implements AutoCloseable {
+    private record Write(long statements, long bytes, Consumer<RepositoryConnection> change, CompletableFuture<Void> done) {}
+    private final static Write FLUSH = new Write(0,0,null,null);
+    private final static Write STOP = new Write(0,0,null,null);
+
+    private final RDFPUBConfig config;
+    private final RepositoryConnection connection;
+    private final Object writeLock;
+    private final ExecutorService parsers;
+    private final Thread writer;
+    private final BlockingQueue<Write> queue;
+    private volatile boolean finishing = false;
+
+    ParallelLoader(final RDFPUBConfig config, final RepositoryConnection connection, final Object writeLock) {
+        this.config = config;
+        this.connection = connection;
+        this.writeLock = writeLock;
+
+        // Parsed buffers wait in a bounded queue so that parsers can't run arbitrarily far ahead of the writer
+        this.queue = new LinkedBlockingQueue<>(config.getParseThreads() * 4);
+        final AtomicInteger threads = new AtomicInteger(0);
+        this.parsers = Executors.newFixedThreadPool(config.getParseThreads(),runnable -> {
+            final Thread thread = new Thread(runnable,"rdfpub-parser-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.writer = new Thread(this::drain,"rdfpub-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    // Parse a file on the worker pool; the returned future completes once its statements are committed
+    CompletableFuture<Void> load(final RDFPUBResource resource, final ResourceFile file, final RDFParser parser) {
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        parsers.execute(() -> {
+            final List<Statement> statements = new ArrayList<>(1024);
+            parser.setRDFHandler(new AbstractRDFHandler() {
+                @Override
+                public void handleNamespace(final String name, final String prefix) {
+                    resource.getPrefixes().put(name, prefix);
+                }
+
+                @Override
+                public void handleStatement(final Statement st) {
+                    statements.add(st);
+                }
+            });
+
+            final long bytes;
+            try(final InputStream in = new BufferedInputStream(new FileInputStream(file.getPath().toFile()))) {
+                bytes = Files.size(file.getPath());
+                parser.parse(in, resource.toString());
+            } catch (final RDFParseException e) {
+                done.completeExceptionally(new RDFParseException("File " + file.getPath().toString() + " is not valid syntax for its file extension.",e));
+                return;
+            } catch (final IOException e) {
+                done.completeExceptionally(new IOException(String.format("Error reading file %s during RDF parsing",file),e));
+                return;
+            } catch (final RuntimeException e) {
+                done.completeExceptionally(e);
+                return;
+            }
+
+            // Statements keep the named graph of the resource the file belongs to
+            enqueue(new Write(statements.size(),bytes,connection -> connection.add(statements,resource),done));
+            done.thenRun(() -> out("Added %s RDF triples to %s", statements.size(), resource));
+        });
+        return done;
+    }
+
+    // Follow-up work on loaded data runs on the worker pool
+    Executor executor() {
+        return parsers;
+    }
+
+    // Queue any other change to the database behind everything submitted so far
+    CompletableFuture<Void> write(final Consumer<RepositoryConnection> change) {
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        enqueue(new Write(0,0,change,done));
+        return done;
+    }
+
+    // Stop waiting for full batches, so that everything submitted from now on is committed promptly
+    void finish() {
+        finishing = true;
+        enqueue(FLUSH);
+    }
+
+    private void enqueue(final Write write) {
+        try {
+            queue.put(write);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if(write.done() != null) {
+                write.done().completeExceptionally(e);
+            }
+        }
+    }
+
+    private boolean batchFull(final long statements, final long bytes) {
+        return statements >= config.getBulkLoadStatements() || bytes >= config.getBulkLoadBytes();
+    }
+
+    private void drain() {
+        final List<Write> batch = new ArrayList<>(256);
+        boolean running = true;
+        while(running) {
+            long statements = 0;
+            long bytes = 0;
+            try {
+                Write write = queue.take();
+                while(write != null) {
+                    if(write == STOP) {
+                        running = false;
+                        break;
+                    }
+                    if(write == FLUSH) {
+                        break;
+                    }
+                    batch.add(write);
+                    statements += write.statements();
+                    bytes += write.bytes();
+                    if(batchFull(statements,bytes)) {
+                        break;
+                    }
+                    write = config.isBulkLoad() && !finishing ? queue.take() : queue.poll();
+                }
+            } catch (final InterruptedException e) {
+                running = false;
+            }
+
+            if(!batch.isEmpty()) {
+                commit(batch,statements,bytes);
+                batch.clear();
+            }
+        }
+
+        // Anything still queued when stopping will never be written
+        Write write;
+        while((write = queue.poll()) != null) {
+            if(write.done() != null) {
+                write.done().completeExceptionally(new CancellationException("RDF loading was stopped"));
+            }
+        }
+    }
+
+    private void commit(final List<Write> batch, final long statements, final long bytes) {
+        try {
+            synchronized(writeLock) {
+                connection.begin(IsolationLevels.NONE);
+                try {
+                    for(final Write write : batch) {
+                        write.change().accept(connection);
+                    }
+                    connection.commit();
+                } finally {
+                    if(connection.isActive()) {
+                        connection.rollback();
+                    }
+                }
+            }
+        } catch (final RuntimeException e) {
+            for(final Write write : batch) {
+                write.done().completeExceptionally(e);
+            }
+            return;
+        }
+        if(config.isBulkLoad()) {
+            out("Committed batch of %s RDF triples from %s bytes of RDF files",statements,bytes);
+        }
+        for(final Write write : batch) {
+            write.done().complete(null);
+        }
+    }
+
+    // Parsers finish their current files and the writer commits what it has, but queued parses are abandoned; an
+    // interrupted close stops waiting for the writer and leaves the interrupt for its caller
+    @Override
+    public void close() {
+        parsers.shutdownNow();
+        enqueue(STOP);
+        try {
+            writer.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package pub.rdf.builder;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.query.*;
+import org.eclipse.rdf4j.query.resultio.sparqljson.SPARQLResultsJSONWriter;
+import pub.rdf.config.RDFPUBConfig;
+import pub.rdf.query.PreparedQuery;
+import pub.rdf.util.Program;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+// Writes the results of a query for one page, as SPARQL JSON or packed results, while enforcing the limits configured
+// for the query. A query that runs too long or produces too many rows or bytes fails the build, or under the truncate
+// policy has its results cut off where the limit was hit, with a warning. The byte limit is checked as the JSON writer
+// flushes, so results may overshoot it by the writer's buffer; packed results are measured by their values.
+final class QueryGuard implements TupleQueryResultHandler {
+    // Stops evaluation once a limit is hit
+    private final static class LimitExceeded extends TupleQueryResultHandlerException {
+        private LimitExceeded(final String message) {
+            super(message);
+        }
+    }
+
+    private final static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        private CountingOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    private final String name;
+    private final PreparedQuery query;
+    private final IRI resource;
+    private final String language;
+    private final RDFPUBConfig.QueryLimit limit;
+    private final boolean truncate;
+    private final TupleQueryResultHandler writer;
+    private final LongSupplier bytes;
+    private boolean started = false;
+    private long rows = 0;
+
+    private QueryGuard(final RDFPUBConfig config, final String name, final PreparedQuery query, final IRI resource, final String language, final TupleQueryResultHandler writer, final LongSupplier bytes) {
+        this.name = name;
+        this.query = query;
+        this.resource = resource;
+        this.language = language;
+        this.limit = config.getQueryLimit(name);
+        this.truncate = config.getQueryLimitPolicy().equals("truncate");
+        this.writer = writer;
+        this.bytes = bytes;
+    }
+
+    static QueryGuard json(final RDFPUBConfig config, final String name, final PreparedQuery query, final IRI resource, final String language, final OutputStream stream) {
+        final CountingOutputStream counter = new CountingOutputStream(stream);
+        return new QueryGuard(config,name,query,resource,language,new SPARQLResultsJSONWriter(counter),() -> counter.count);
+    }
+
+    static QueryGuard packed(final RDFPUBConfig config, final String name, final PreparedQuery query, final IRI resource, final String language, final PackedResults.Result result) {
+        return new QueryGuard(config,name,query,resource,language,result,result::bytes);
+    }
+
+    // Evaluate the query for the page, returning the number of rows written
+    long evaluate() {
+        final TupleQuery bound = query.bind(resource,language);
+        bound.setMaxExecutionTime(limit.timeout());
+        try {
+            bound.evaluate(this);
+        } catch (final LimitExceeded e) {
+            exceeded(e.getMessage(),e);
+        } catch (final QueryInterruptedException e) {
+            exceeded(String.format("timed out after %s seconds",limit.timeout()),e);
+        }
+        return rows;
+    }
+
+    // Write solutions that were already evaluated for the page, returning the number of rows written
+    long write(final List<BindingSet> solutions) {
+        try {
+            startQueryResult(query.getBindingNames());
+            for(final BindingSet solution : solutions) {
+                handleSolution(solution);
+            }
+            endQueryResult();
+        } catch (final LimitExceeded e) {
+            exceeded(e.getMessage(),e);
+        }
+        return rows;
+    }
+
+    private void exceeded(final String reason, final Exception cause) {
+        final String message = String.format("Query %s for <%s> in language '%s' %s",name,resource,language,reason);
+        if(!truncate) {
+            throw new QueryEvaluationException(message,cause);
+        }
+        Program.err("WARNING: %s; truncating its results",message);
+        if(!started) {
+            startQueryResult(query.getBindingNames());
+        }
+        endQueryResult();
+    }
+
+    @Override
+    public void startQueryResult(final List<String> bindingNames) throws TupleQueryResultHandlerException {
+        started = true;
+        writer.startQueryResult(bindingNames);
+    }
+
+    @Override
+    public void handleSolution(final BindingSet bindingSet) throws TupleQueryResultHandlerException {
+        if(limit.maxRows() > 0 && rows >= limit.maxRows()) {
+            throw new LimitExceeded(String.format("produced more than %s rows",limit.maxRows()));
+        }
+        writer.handleSolution(bindingSet);
+        rows++;
+        if(limit.maxBytes() > 0 && bytes.getAsLong() > limit.maxBytes()) {
+            throw new LimitExceeded(String.format("produced more than %s bytes",limit.maxBytes()));
+        }
+    }
+
+    @Override
+    public void endQueryResult() throws TupleQueryResultHandlerException {
+        writer.endQueryResult();
+    }
+
+    @Override
+    public void handleBoolean(final boolean value) throws QueryResultHandlerException {
+        writer.handleBoolean(value);
+    }
+
+    @Override
+    public void handleLinks(final List<String> linkUrls) throws QueryResultHandlerException {
+        writer.handleLinks(linkUrls);
+    }
+}
@@ -0,0 +1,123 @@
+package pub.rdf.builder;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.query.TupleQuery;
+import org.eclipse.rdf4j.query.explanation.Explanation;
+import pub.rdf.config.RDFPUBConfig;
+import pub.rdf.query.PreparedQuery;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static pub.rdf.util.Program.out;
+
+// Records how long every layout query execution of a build took and how much it produced, or how it failed, then
+// writes a JSON report with totals per query file, every execution, and timed explain plans of the slowest executions
+final class QueryProfiler {
+    final static String FILENAME = "query-profile.json";
+
+    // One evaluation of a query, for a batch of pages when batched; the resource and language are those of its first page,
+    // and the error is the message of the failure or timeout that ended it, or null when it completed
+    record Execution(String name, PreparedQuery query, IRI resource, String language, int pages, long prepareNanos, long evaluateNanos, long rows, long bytes, String error) {}
+
+    private final Queue<Execution> executions = new ConcurrentLinkedQueue<>();
+    private final Map<Execution,String> explanations = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    void record(final Execution execution) {
+        executions.add(execution);
+    }
+
+    // Evaluate the slowest executions again on the query workers, this time with timings for every operator and
+    // within the same timeout as the query itself; batched executions are explained for their first page
+    void explain(final RDFPUBConfig config, final QueryWorkers workers, final int slowest) throws Exception {
+        final List<Execution> sorted = new ArrayList<>(executions);
+        sorted.sort(Comparator.comparingLong(Execution::evaluateNanos).reversed());
+        for(final Execution execution : sorted.subList(0,Math.min(slowest,sorted.size()))) {
+            workers.submit(() -> {
+                out("Explaining query %s for %s", execution.name(), execution.resource());
+                final TupleQuery bound = workers.local(execution.query()).bind(execution.resource(),execution.language());
+                bound.setMaxExecutionTime(config.getQueryLimit(execution.name()).timeout());
+                final Explanation explanation = bound.explain(Explanation.Level.Timed);
+                explanations.put(execution,explanation.toJson());
+                return null;
+            });
+        }
+        workers.await();
+    }
+
+    void write(final Path file) throws IOException {
+        final List<Execution> sorted = new ArrayList<>(executions);
+        sorted.sort(Comparator.comparingLong(Execution::evaluateNanos).reversed());
+
+        // Totals per query file, slowest first
+        final Map<String,long[]> totals = new LinkedHashMap<>(64);
+        for(final Execution execution : sorted) {
+            final long[] total = totals.computeIfAbsent(execution.name(),name -> new long[6]);
+            total[0]++;
+            total[1] += execution.prepareNanos();
+            total[2] += execution.evaluateNanos();
+            total[3] += execution.rows();
+            total[4] += execution.bytes();
+            if(execution.error() != null) {
+                total[5]++;
+            }
+        }
+
+        final Path temp = file.resolveSibling(FILENAME + ".tmp");
+        try(final Writer writer = Files.newBufferedWriter(temp); final JsonGenerator json = new JsonFactory().createGenerator(writer)) {
+            json.useDefaultPrettyPrinter();
+            json.writeStartObject();
+
+            json.writeArrayFieldStart("queries");
+            for(final Map.Entry<String,long[]> total : totals.entrySet()) {
+                json.writeStartObject();
+                json.writeStringField("query",total.getKey());
+                json.writeNumberField("executions",total.getValue()[0]);
+                json.writeNumberField("failures",total.getValue()[5]);
+                json.writeNumberField("prepareMillis",millis(total.getValue()[1]));
+                json.writeNumberField("evaluateMillis",millis(total.getValue()[2]));
+                json.writeNumberField("rows",total.getValue()[3]);
+                json.writeNumberField("bytes",total.getValue()[4]);
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+
+            json.writeArrayFieldStart("executions");
+            for(final Execution execution : sorted) {
+                json.writeStartObject();
+                json.writeStringField("query",execution.name());
+                json.writeStringField("resource",execution.resource().stringValue());
+                json.writeStringField("language",execution.language());
+                json.writeNumberField("pages",execution.pages());
+                json.writeNumberField("prepareMillis",millis(execution.prepareNanos()));
+                json.writeNumberField("evaluateMillis",millis(execution.evaluateNanos()));
+                json.writeNumberField("rows",execution.rows());
+                json.writeNumberField("bytes",execution.bytes());
+                if(execution.error() != null) {
+                    json.writeStringField("error",execution.error());
+                }
+                if(explanations.containsKey(execution)) {
+                    json.writeFieldName("explain");
+                    json.writeRawValue(explanations.get(execution));
+                }
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+
+            json.writeEndObject();
+        }
+        Files.move(temp,file,StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+        out("Wrote profile of %s query executions to %s",sorted.size(),file);
+    }
+
+    private static double millis(final long nanos) {
+        return nanos / 1e6;
+    }
+}
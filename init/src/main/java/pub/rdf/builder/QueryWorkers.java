@@ -0,0 +1,99 @@
+package pub.rdf.builder;
+
+import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import pub.rdf.query.PreparedQuery;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Evaluates layout queries on a pool of worker threads. Each worker reads through its own connection to the
+// repository and re-prepares every query it evaluates on that connection, since prepared queries hold their
+// bindings and can't be shared between threads.
+final class QueryWorkers implements AutoCloseable {
+    private final static class Worker {
+        private final RepositoryConnection connection;
+        private final Map<PreparedQuery,PreparedQuery> queries = new HashMap<>(64);
+
+        private Worker(final RepositoryConnection connection) {
+            this.connection = connection;
+        }
+    }
+
+    private final ExecutorService threads;
+    private final Queue<Worker> workers = new ConcurrentLinkedQueue<>();
+    private final Queue<Future<?>> pending = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<Worker> worker;
+
+    QueryWorkers(final Repository repository, final int size) {
+        this.worker = ThreadLocal.withInitial(() -> {
+            final Worker created = new Worker(repository.getConnection());
+            workers.add(created);
+            return created;
+        });
+        final AtomicInteger count = new AtomicInteger(0);
+        this.threads = Executors.newFixedThreadPool(size,runnable -> {
+            final Thread thread = new Thread(runnable,"rdfpub-query-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // The copy of a query for the calling worker thread
+    PreparedQuery local(final PreparedQuery query) {
+        final Worker current = worker.get();
+        return current.queries.computeIfAbsent(query,prepared -> prepared.copy(current.connection));
+    }
+
+    <T> CompletableFuture<T> submit(final Callable<T> task) {
+        final CompletableFuture<T> done = new CompletableFuture<>();
+        pending.add(threads.submit(() -> {
+            try {
+                done.complete(task.call());
+            } catch (final Exception e) {
+                done.completeExceptionally(e);
+                throw e;
+            }
+            return null;
+        }));
+        return done;
+    }
+
+    // Wait for every submitted task, including those submitted while waiting, and fail with the first error
+    void await() throws Exception {
+        Exception error = null;
+        Future<?> task;
+        while((task = pending.poll()) != null) {
+            try {
+                task.get();
+            } catch (final ExecutionException e) {
+                final Exception ex = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                if(error == null) {
+                    error = ex;
+                } else {
+                    error.addSuppressed(ex);
+                }
+            }
+        }
+        if(error != null) {
+            throw error;
+        }
+    }
+
+    @Override
+    public void close() {
+        threads.shutdownNow();
+        try {
+            threads.awaitTermination(1,TimeUnit.MINUTES);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Worker closed;
+        while((closed = workers.poll()) != null) {
+            closed.connection.close();
+        }
+    }
+}
@@ -1,75 +1,448 @@
 package pub.rdf.builder;
 
+import org.eclipse.rdf4j.model.IRI;
 import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
-import org.eclipse.rdf4j.query.TupleQuery;
-import org.eclipse.rdf4j.query.resultio.sparqljson.SPARQLResultsJSONWriter;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.QueryEvaluationException;
+import org.eclipse.rdf4j.query.QueryInterruptedException;
 import pub.rdf.config.RDFPUBConfig;
+import pub.rdf.query.PreparedQuery;
 import pub.rdf.resource.RDFPUBResource;
 import pub.rdf.resource.ResourceFile;
+import pub.rdf.util.Program;
 
-import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.*;
-import java.util.LinkedList;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import static pub.rdf.util.Program.out;
 
 public class ResourceFileBuilder extends ConfigurableBuilder {
     private final Path resourcedir;
     private final Path layoutdir;
-    private final LinkedList<RDFPUBResource> layouts = new LinkedList<>();
+    private final CompressionBuilder compression;
+    private final Deque<RDFPUBResource> layouts = new ConcurrentLinkedDeque<>();
+    private final Map<Path,Queue<RDFPUBResource>> descendants = new ConcurrentHashMap<>(256);
+    private QueryWorkers workers = null;
+    private QueryProfiler profiler = null;
 
-    public ResourceFileBuilder(final RDFPUBConfig config) {
+    // Where the results of a query for one page go: a SPARQL JSON file, or the packed results of the page's resource
+    private record Target(Path file, PackedResults pack, String name, String language) {}
+
+    // Results of a query that doesn't use ?resource, evaluated for the first page that inherits it and handed to every
+    // further page as soon as both the results and the page are in, so that packs don't wait for the whole layout loop
+    private final static class Shared {
+        private final Target first;
+        private final List<Target> waiting = new ArrayList<>();
+        private PackedResults.Result result = null;
+        private boolean evaluated = false;
+        private int pages = 1;
+
+        private Shared(final Target first) {
+            this.first = first;
+        }
+
+        synchronized void add(final Target target) throws IOException {
+            pages++;
+            if(evaluated) {
+                deliver(target);
+            } else {
+                waiting.add(target);
+            }
+        }
+
+        // Take the results written for the first page, or into a packed result, and return how many pages have them
+        synchronized int evaluated(final PackedResults.Result result) throws IOException {
+            this.result = result;
+            evaluated = true;
+            for(final Target target : waiting) {
+                deliver(target);
+            }
+            waiting.clear();
+            return pages;
+        }
+
+        private void deliver(final Target target) throws IOException {
+            if(target.pack() != null) {
+                target.pack().add(target.name(),target.language(),result);
+            } else {
+                link(first.file(),target.file());
+            }
+        }
+    }
+
+    public ResourceFileBuilder(final RDFPUBConfig config, final CompressionBuilder compression) {
         super(config);
+        this.compression = compression;
         this.resourcedir = config.getOutputDirectory().resolve("resources");
         this.layoutdir = config.getOutputDirectory().resolve("layouts");
     }
 
     @Override
     public void init() throws IOException {
-        Files.createDirectory(resourcedir);
-        Files.createDirectory(layoutdir);
+        Files.createDirectories(resourcedir);
+        Files.createDirectories(layoutdir);
+
+        // Start from scratch when rebuilding in watch mode
+        layouts.clear();
+        descendants.clear();
     }
 
     @Override
-    public void complete() throws IOException {
-        // Do template processing
-        for(final RDFPUBResource resource : layouts) {
-            if(resource.getIndexTemplates().isEmpty()) {
-                out("No index templates for %s",resource);
-                continue;
+    public void complete() throws Exception {
+        // Results of queries that don't use ?resource, once per language if they use ?language and once otherwise, keyed by "" then
+        final Map<PreparedQuery,Map<String,Shared>> memoized = new HashMap<>(64);
+
+        // Pages to evaluate batchable queries for once a batch of them is in
+        final Map<PreparedQuery,Map<PreparedQuery.Binding,List<Target>>> batches = new LinkedHashMap<>(64);
+
+        // A name for logging each batched query
+        final Map<PreparedQuery,String> names = new HashMap<>(64);
+
+        profiler = config.isQueryProfile() ? new QueryProfiler() : null;
+        try {
+            // Do template processing; queries are evaluated on the worker pool
+            for(final RDFPUBResource resource : layouts) {
+                if(config.isIncremental()) {
+                    // Skip layouts whose inputs, inherited layouts and site data are all unchanged since the previous build
+                    if(!resource.layoutChanged() && resource.getIndexTemplates().stream().allMatch(index -> Files.exists(resource.getLayoutPath().resolve(index.getFileName())))) {
+                        out("Layout for %s is up to date",resource);
+                        continue;
+                    }
+
+                    // Clear stale layout files from a previous build
+                    try(final DirectoryStream<Path> stale = Files.newDirectoryStream(resource.getLayoutPath(),Files::isRegularFile)) {
+                        for(final Path file : stale) {
+                            Files.delete(file);
+                        }
+                    }
+                }
+
+                if(resource.getIndexTemplates().isEmpty()) {
+                    out("No index templates for %s",resource);
+                    continue;
+                }
+
+                out("Processing layout for %s",resource);
+                final PackedResults pack = config.getQueryResultFormat().equals("packed") ? new PackedResults(resource.getLayoutPath().resolve(PackedResults.FILENAME)) : null;
+
+                // Pages of this resource in every language for each query that doesn't use ?language
+                final Map<String,List<Target>> languages = new LinkedHashMap<>(16);
+                for(final ResourceFile index : resource.getIndexTemplates()) {
+                    // Copy file to output location
+                    Files.copy(index.getPath(),resource.getLayoutPath().resolve(index.getFileName()),StandardCopyOption.REPLACE_EXISTING);
+
+                    // Execute queries for this index file
+                    final String language = index.getLanguage();
+                    for (final Map.Entry<String, PreparedQuery> query : resource.getQueries().entrySet()) {
+                        final PreparedQuery prepared = query.getValue();
+                        final Target target = new Target(resource.getLayoutPath().resolve(String.format("%s@%s.rq", query.getKey(),language)),pack,query.getKey(),language);
+                        if(pack != null) {
+                            pack.expect();
+                        }
+
+                        // Results that don't depend on the resource are the same for every resource that inherits the query
+                        if(!prepared.usesResource()) {
+                            final Map<String,Shared> memo = memoized.computeIfAbsent(prepared,key -> new HashMap<>(4));
+                            final Shared shared = memo.get(prepared.usesLanguage() ? language : "");
+                            if(shared != null) {
+                                shared.add(target);
+                                continue;
+                            }
+
+                            final Shared results = new Shared(target);
+                            memo.put(prepared.usesLanguage() ? language : "",results);
+                            workers(prepared).submit(() -> {
+                                out("Executing query %s for every page that inherits it", query.getKey());
+                                final PreparedQuery local = workers.local(prepared);
+                                final long prepareNanos = prepared.takePrepareNanos() + local.takePrepareNanos();
+                                final long evaluateStart = System.nanoTime();
+                                final long[] written;
+                                try {
+                                    written = memoize(query.getKey(),local,resource,results);
+                                } catch (final IOException | RuntimeException e) {
+                                    failed(query.getKey(),prepared,resource,language,1,prepareNanos,evaluateStart,e);
+                                    throw e;
+                                }
+                                if(profiler != null) {
+                                    profiler.record(new QueryProfiler.Execution(query.getKey(),prepared,resource,language,(int) written[2],prepareNanos,System.nanoTime() - evaluateStart,written[0],written[1],null));
+                                }
+                                return null;
+                            });
+                            continue;
+                        }
+
+                        // Queries inherited by many resources can be evaluated for a batch of them at once
+                        if(config.getQueryBatchSize() > 1 && prepared.isBatchable()) {
+                            names.putIfAbsent(prepared,query.getKey());
+                            batches.computeIfAbsent(prepared,batch -> new LinkedHashMap<>())
+                                .computeIfAbsent(prepared.binding(resource,language),page -> new ArrayList<>(1))
+                                .add(target);
+                            continue;
+                        }
+
+                        // Results that don't depend on the language are the same for every index template of the resource
+                        if(!prepared.usesLanguage()) {
+                            languages.computeIfAbsent(query.getKey(),name -> new ArrayList<>(4)).add(target);
+                            continue;
+                        }
+
+                        workers(prepared).submit(() -> {
+                            out("Executing query %s", query.getKey());
+                            final PreparedQuery local = workers.local(prepared);
+                            final long prepareNanos = prepared.takePrepareNanos() + local.takePrepareNanos();
+                            final long evaluateStart = System.nanoTime();
+                            final long[] written;
+                            try {
+                                written = write(query.getKey(),local,resource,target,null);
+                            } catch (final IOException | RuntimeException e) {
+                                failed(query.getKey(),prepared,resource,language,1,prepareNanos,evaluateStart,e);
+                                throw e;
+                            }
+                            if(profiler != null) {
+                                profiler.record(new QueryProfiler.Execution(query.getKey(),prepared,resource,language,1,prepareNanos,System.nanoTime() - evaluateStart,written[0],written[1],null));
+                            }
+                            return null;
+                        });
+                    }
+                }
+
+                for(final Map.Entry<String,List<Target>> query : languages.entrySet()) {
+                    final PreparedQuery prepared = resource.getQueries().get(query.getKey());
+                    final List<Target> targets = query.getValue();
+                    workers(prepared).submit(() -> {
+                        out("Executing query %s for %s languages", query.getKey(), targets.size());
+                        final PreparedQuery local = workers.local(prepared);
+                        final long prepareNanos = prepared.takePrepareNanos() + local.takePrepareNanos();
+                        final long evaluateStart = System.nanoTime();
+                        final long[] written;
+                        try {
+                            written = share(query.getKey(),local,resource,targets);
+                        } catch (final IOException | RuntimeException e) {
+                            failed(query.getKey(),prepared,resource,targets.get(0).language(),targets.size(),prepareNanos,evaluateStart,e);
+                            throw e;
+                        }
+                        if(profiler != null) {
+                            profiler.record(new QueryProfiler.Execution(query.getKey(),prepared,resource,targets.get(0).language(),targets.size(),prepareNanos,System.nanoTime() - evaluateStart,written[0],written[1],null));
+                        }
+                        return null;
+                    });
+                }
+
+                for(final Map.Entry<String, ResourceFile> partialTemplate : resource.getPartialTemplates().entrySet()) {
+                    out("Copying partial template %s",partialTemplate.getKey());
+                    Files.copy(partialTemplate.getValue().getPath(),resource.getLayoutPath().resolve(String.format("%s.handlebars",partialTemplate.getKey())),StandardCopyOption.REPLACE_EXISTING);
+                }
+
+                // Packed results are written once every query of the resource is in
+                if(pack != null) {
+                    pack.seal();
+                }
+
+                // Evaluate batches that filled up with this resource, so that their packs are written as the loop goes
+                for(final Map.Entry<PreparedQuery,Map<PreparedQuery.Binding,List<Target>>> batch : batches.entrySet()) {
+                    batch(batch.getKey(),names.get(batch.getKey()),batch.getValue(),false);
+                }
+            }
+
+            // Evaluate what is left of the batches
+            for(final Map.Entry<PreparedQuery,Map<PreparedQuery.Binding,List<Target>>> batch : batches.entrySet()) {
+                batch(batch.getKey(),names.get(batch.getKey()),batch.getValue(),true);
             }
 
-            out("Processing layout for %s",resource);
-            for(final ResourceFile index : resource.getIndexTemplates()) {
-                // Copy file to output location
-                Files.copy(index.getPath(),resource.getLayoutPath().resolve(index.getFileName()));
+            if(workers != null) {
+                try {
+                    workers.await();
+                } catch (final Exception e) {
+                    // Profile what ran before the build failed, failed executions included
+                    if(profiler != null) {
+                        profiler.write(config.getOutputDirectory().resolve(QueryProfiler.FILENAME));
+                    }
+                    throw e;
+                }
 
-                // Execute queries for this index file
-                final String language = index.getLanguage();
-                for (final Map.Entry<String, TupleQuery> query : resource.getQueries().entrySet()) {
-                    out("Executing query %s", query.getKey());
-                    query.getValue().setBinding("resource", resource);
-                    query.getValue().setBinding("language", SimpleValueFactory.getInstance().createLiteral(language));
-                    query.getValue().evaluate(new SPARQLResultsJSONWriter(new FileOutputStream(resource.getLayoutPath().resolve(String.format("%s@%s.rq", query.getKey(),language)).toFile())));
+                // Report on every query executed in this build
+                if(profiler != null) {
+                    profiler.explain(config,workers,config.getQueryProfileExplain());
+                    profiler.write(config.getOutputDirectory().resolve(QueryProfiler.FILENAME));
                 }
             }
+        } finally {
+            closeWorkers();
+        }
+    }
+
+    // Evaluate batched queries for full batches of pending pages, and for the rest too if asked, and split their
+    // solutions back into per-page results
+    private void batch(final PreparedQuery query, final String name, final Map<PreparedQuery.Binding,List<Target>> pending, final boolean rest) {
+        while(pending.size() >= config.getQueryBatchSize() || (rest && !pending.isEmpty())) {
+            final Map<PreparedQuery.Binding,List<Target>> targets = new LinkedHashMap<>(config.getQueryBatchSize());
+            final Iterator<Map.Entry<PreparedQuery.Binding,List<Target>>> pages = pending.entrySet().iterator();
+            while(pages.hasNext() && targets.size() < config.getQueryBatchSize()) {
+                final Map.Entry<PreparedQuery.Binding,List<Target>> page = pages.next();
+                targets.put(page.getKey(),page.getValue());
+                pages.remove();
+            }
 
-            for(final Map.Entry<String, ResourceFile> partialTemplate : resource.getPartialTemplates().entrySet()) {
-                out("Copying partial template %s",partialTemplate.getKey());
-                Files.copy(partialTemplate.getValue().getPath(),resource.getLayoutPath().resolve(String.format("%s.handlebars",partialTemplate.getKey())));
+            final List<PreparedQuery.Binding> chunk = new ArrayList<>(targets.keySet());
+            workers(query).submit(() -> {
+                out("Executing query %s for %s pages", name, chunk.size());
+                final PreparedQuery local = workers.local(query);
+                final long prepareNanos = query.takePrepareNanos() + local.takePrepareNanos();
+                final long evaluateStart = System.nanoTime();
+                final PreparedQuery.Binding first = chunk.get(0);
+                final IRI firstResource = SimpleValueFactory.getInstance().createIRI(first.resource());
+                final String firstLanguage = first.language() == null ? config.getDefaultLanguage() : first.language();
+                long rows = 0;
+                long bytes = 0;
+                try {
+                    Map<PreparedQuery.Binding,List<BindingSet>> solutions;
+                    try {
+                        solutions = local.evaluate(chunk,config.getQueryLimit(name).timeout());
+                    } catch (final QueryInterruptedException e) {
+                        // Under the truncate policy, pages of a batch that timed out get their own time limits
+                        final String message = String.format("Query %s for a batch of %s pages starting at <%s> timed out after %s seconds",name,chunk.size(),first.resource(),config.getQueryLimit(name).timeout());
+                        if(!config.getQueryLimitPolicy().equals("truncate")) {
+                            throw new QueryEvaluationException(message,e);
+                        }
+                        Program.err("WARNING: %s; evaluating its pages one at a time",message);
+                        solutions = null;
+                    }
+
+                    for(final PreparedQuery.Binding page : chunk) {
+                        final IRI resource = SimpleValueFactory.getInstance().createIRI(page.resource());
+                        for(final Target target : targets.get(page)) {
+                            final long[] written = write(name,local,resource,target,solutions == null ? null : solutions.get(page));
+                            rows += written[0];
+                            bytes += written[1];
+                        }
+                    }
+                } catch (final IOException | RuntimeException e) {
+                    failed(name,query,firstResource,firstLanguage,chunk.size(),prepareNanos,evaluateStart,e);
+                    throw e;
+                }
+                if(profiler != null) {
+                    profiler.record(new QueryProfiler.Execution(name,query,firstResource,firstLanguage,chunk.size(),prepareNanos,System.nanoTime() - evaluateStart,rows,bytes,null));
+                }
+                return null;
+            });
+        }
+    }
+
+    // Record an evaluation that failed or timed out with the time it ran for, since it has no results to count
+    private void failed(final String name, final PreparedQuery query, final IRI resource, final String language, final int pages, final long prepareNanos, final long evaluateStart, final Exception e) {
+        if(profiler != null) {
+            profiler.record(new QueryProfiler.Execution(name,query,resource,language,pages,prepareNanos,System.nanoTime() - evaluateStart,0,0,e.getMessage() != null ? e.getMessage() : e.getClass().getName()));
+        }
+    }
+
+    // Evaluate a query that doesn't use ?resource for the first page that inherits it and hand the results to the
+    // others; returns the number of rows, the bytes written for the pages that are in so far and their number
+    private long[] memoize(final String name, final PreparedQuery query, final IRI resource, final Shared shared) throws IOException {
+        final Target first = shared.first;
+        if(first.pack() != null) {
+            final PackedResults.Result result = new PackedResults.Result();
+            final long rows = QueryGuard.packed(config,name,query,resource,first.language(),result).evaluate();
+            first.pack().add(first.name(),first.language(),result);
+            final int pages = shared.evaluated(result);
+            return new long[] { rows, result.bytes() * pages, pages };
+        }
+
+        // Files linked by a previous build must not be truncated in place
+        Files.deleteIfExists(first.file());
+        final long[] written = write(name,query,resource,first,null);
+        final int pages = shared.evaluated(null);
+        return new long[] { written[0], written[1] * pages, pages };
+    }
+
+    // Write the results of a query for one page to its target, evaluating the query unless its solutions are given;
+    // returns the number of rows and bytes written
+    private long[] write(final String name, final PreparedQuery query, final IRI resource, final Target target, final List<BindingSet> solutions) throws IOException {
+        if(target.pack() != null) {
+            final PackedResults.Result result = new PackedResults.Result();
+            final QueryGuard guard = QueryGuard.packed(config,name,query,resource,target.language(),result);
+            final long rows = solutions == null ? guard.evaluate() : guard.write(solutions);
+            target.pack().add(target.name(),target.language(),result);
+            return new long[] { rows, result.bytes() };
+        }
+
+        final long rows;
+        try(final OutputStream stream = new BufferedOutputStream(Files.newOutputStream(target.file()))) {
+            final QueryGuard guard = QueryGuard.json(config,name,query,resource,target.language(),stream);
+            rows = solutions == null ? guard.evaluate() : guard.write(solutions);
+        }
+        return new long[] { rows, profiler != null ? Files.size(target.file()) : 0 };
+    }
+
+    // Evaluate a query once for several pages with the same results, in the language of the first, and hand the results
+    // to all of them: packed results share the same rows, and SPARQL JSON files after the first are links to it
+    private long[] share(final String name, final PreparedQuery query, final IRI resource, final List<Target> targets) throws IOException {
+        final Target first = targets.get(0);
+        if(first.pack() != null) {
+            final PackedResults.Result result = new PackedResults.Result();
+            final long rows = QueryGuard.packed(config,name,query,resource,first.language(),result).evaluate();
+            for(final Target target : targets) {
+                target.pack().add(target.name(),target.language(),result);
             }
+            return new long[] { rows, result.bytes() * targets.size() };
+        }
+
+        // Files linked by a previous build must not be truncated in place
+        Files.deleteIfExists(first.file());
+        final long[] written = write(name,query,resource,first,null);
+        for(final Target target : targets.subList(1,targets.size())) {
+            link(first.file(),target.file());
+        }
+        return new long[] { written[0], written[1] * targets.size() };
+    }
+
+    // Make a SPARQL JSON file a link to another with the same results, or a copy where links aren't supported
+    private static void link(final Path first, final Path file) throws IOException {
+        Files.deleteIfExists(file);
+        try {
+            Files.createLink(file,first);
+        } catch (final IOException | UnsupportedOperationException e) {
+            Files.copy(first,file);
+        }
+    }
+
+    // Start query workers on the repository of the first query evaluated in this build
+    private QueryWorkers workers(final PreparedQuery query) {
+        if(workers == null) {
+            workers = new QueryWorkers(query.getConnection().getRepository(),config.getQueryThreads());
+        }
+        return workers;
+    }
+
+    private void closeWorkers() {
+        if(workers != null) {
+            workers.close();
+            workers = null;
         }
     }
 
     @Override
     public void always() {
-        // noop
+        closeWorkers();
     }
 
     @Override
     public Exception handleNewResource(final RDFPUBResource resource) {
+        // Register resource as a descendant of every enclosing resource for layout propagation
+        descendants.put(resource.getLayoutPath(),new ConcurrentLinkedQueue<>());
+        for(Path ancestor = resource.getLayoutPath().getParent(); ancestor != null && ancestor.startsWith(layoutdir); ancestor = ancestor.getParent()) {
+            final Queue<RDFPUBResource> subtree = descendants.get(ancestor);
+            if(subtree != null) {
+                subtree.add(resource);
+            }
+        }
+
         // Create new resource output directory that mirrors input directory
         try {
             Files.createDirectory(resource.getResourcePath());
@@ -120,37 +493,46 @@ public class ResourceFileBuilder extends ConfigurableBuilder {
                 }
                 return null;
             default:
-                out(String.format("Processing %s as static file", file));
                 final Path relative = config.getInputDirectory().relativize(file.getPath());
+                if(resource.getUnchangedFiles().contains(file.getPath()) && Files.exists(resourcedir.resolve(relative))) {
+                    out("Static file %s is up to date", file);
+                    return null;
+                }
+
+                out(String.format("Processing %s as static file", file));
                 try {
-                    Files.copy(file.getPath(), resourcedir.resolve(relative));
+                    Files.copy(file.getPath(), resourcedir.resolve(relative), StandardCopyOption.REPLACE_EXISTING);
                 } catch (final IOException e) {
                     return new IOException(String.format("Failed to copy %s from input directory to output directory", file), e);
                 }
+                compression.compress(resourcedir.resolve(relative));
                 return null;
         }
     }
 
     @Override
     public Exception handleFinishedResource(final RDFPUBResource resource) {
-        // Propagate layout files
+        // Propagate layout files; all descendants are finished by now, nearest layouts first
+        final Queue<RDFPUBResource> subtree = descendants.remove(resource.getLayoutPath());
+        if(resource.layoutChanged()) {
+            for (final RDFPUBResource child : subtree) {
+                child.layoutChanged(true);
+            }
+        }
+
         if(resource.hasLayout()) {
             out("Propagating layout for %s", resource);
-            for (final RDFPUBResource child : layouts) {
-                if (child.equals(resource)) {
-                    break;
-                } else {
-                    out("Propagating to child %s", child);
+            for (final RDFPUBResource child : subtree) {
+                out("Propagating to child %s", child);
 
-                    // Propagate queries
-                    for (final Map.Entry<String, TupleQuery> query : resource.getQueries().entrySet()) {
-                        child.getQueries().putIfAbsent(query.getKey(), query.getValue());
-                    }
+                // Propagate queries
+                for (final Map.Entry<String, PreparedQuery> query : resource.getQueries().entrySet()) {
+                    child.getQueries().putIfAbsent(query.getKey(), query.getValue());
+                }
 
-                    // Propagate partial templates
-                    for (final Map.Entry<String, ResourceFile> partialTemplate : resource.getPartialTemplates().entrySet()) {
-                        child.getPartialTemplates().putIfAbsent(partialTemplate.getKey(), partialTemplate.getValue());
-                    }
+                // Propagate partial templates
+                for (final Map.Entry<String, ResourceFile> partialTemplate : resource.getPartialTemplates().entrySet()) {
+                    child.getPartialTemplates().putIfAbsent(partialTemplate.getKey(), partialTemplate.getValue());
                 }
             }
         } else {
@@ -7,9 +7,13 @@ import org.yaml.snakeyaml.constructor.Constructor;
 
 import java.io.IOException;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 public final class RDFPUBConfig {
@@ -23,8 +27,49 @@ public final class RDFPUBConfig {
         public List<String> IncludeFiles = Collections.emptyList();
         public List<String> CompressFiles = Collections.emptyList();
         public Map<String,String> FileTypes = Collections.emptyMap();
+        public int Parallelism = 1;
+        public boolean Incremental = false;
+        public boolean Pipeline = false;
+        public int PipelineCapacity = 1024;
+        public boolean BulkLoad = false;
+        public long BulkLoadStatements = 1000000;
+        public long BulkLoadBytes = 128L * 1024 * 1024;
+        public int ParseThreads = 1;
+        public String StoreBackend = "native";
+        public boolean InMemoryBuild = false;
+        public List<String> RDFFormats = List.of("jsonld","nt","rdf","ttl");
+        public Map<String,List<String>> ResourceRDFFormats = Collections.emptyMap();
+        public long CompressMinSize = 512;
+        public int QueryBatchSize = 0;
+        public int QueryThreads = 1;
+        public boolean QueryProfile = false;
+        public int QueryProfileExplain = 10;
+        public int QueryTimeout = 0;
+        public long QueryMaxRows = 0;
+        public long QueryMaxBytes = 0;
+        public String QueryLimitPolicy = "fail";
+        public Map<String,Map<String,Number>> QueryLimits = Collections.emptyMap();
+        public int FetchRounds = 0;
+        public int FetchThreads = 4;
+        public int FetchTimeout = 30;
+        public String FetchEndpoint = null;
+        public String QueryResultFormat = "json";
+        public int TripleIndexBudget = 0;
+        public long StoreCacheMemory = 64L * 1024 * 1024;
+        public boolean SPARQLCache = true;
+        public String SPARQLCacheSize = "256m";
+        public String SPARQLCacheKeys = "10m";
+        public String SPARQLCacheInactive = "7d";
+        public Map<String,String> HotQueries = Collections.emptyMap();
+        public int SPARQLClientConnections = 4;
+        public int SPARQLQueue = 40;
+        public int SPARQLConcurrency = 0;
+        public int SPARQLMaxQueryTime = 30;
     }
 
+    // Limits on a single query execution; a timeout in seconds, and zero for no limit
+    public record QueryLimit(int timeout, long maxRows, long maxBytes) {}
+
     private final Path InputDirectory;
     private final Path OutputDirectory;
     private final URI BaseURI;
@@ -36,6 +81,43 @@ public final class RDFPUBConfig {
     private final List<String> IncludeFiles;
     private final List<String> CompressFiles;
     private final Map<String,String> FileTypes;
+    private final int Parallelism;
+    private final boolean Incremental;
+    private final boolean Pipeline;
+    private final int PipelineCapacity;
+    private final boolean BulkLoad;
+    private final long BulkLoadStatements;
+    private final long BulkLoadBytes;
+    private final int ParseThreads;
+    private final String StoreBackend;
+    private final boolean InMemoryBuild;
+    private final List<String> RDFFormats;
+    private final Map<Pattern,List<String>> ResourceRDFFormats;
+    private final long CompressMinSize;
+    private final int QueryBatchSize;
+    private final int QueryThreads;
+    private final boolean QueryProfile;
+    private final int QueryProfileExplain;
+    private final QueryLimit DefaultQueryLimits;
+    private final Map<String,QueryLimit> QueryLimits;
+    private final String QueryLimitPolicy;
+    private final int FetchRounds;
+    private final int FetchThreads;
+    private final int FetchTimeout;
+    private final URI FetchEndpoint;
+    private final String QueryResultFormat;
+    private final int TripleIndexBudget;
+    private final long StoreCacheMemory;
+    private final boolean SPARQLCache;
+    private final String SPARQLCacheSize;
+    private final String SPARQLCacheKeys;
+    private final String SPARQLCacheInactive;
+    private final Map<String,String> HotQueries;
+    private final int SPARQLClientConnections;
+    private final int SPARQLQueue;
+    private final int SPARQLConcurrency;
+    private final int SPARQLMaxQueryTime;
+    private final String ConfigHash;
 
     private RDFPUBConfig(
         final Path inputdir,
@@ -48,7 +130,44 @@ public final class RDFPUBConfig {
         final Map<String,String> FileTypes,
         final List<String> IncludeFiles,
         final List<String> ExcludeFiles,
-        final List<String> CompressFiles
+        final List<String> CompressFiles,
+        final int Parallelism,
+        final boolean Incremental,
+        final boolean Pipeline,
+        final int PipelineCapacity,
+        final boolean BulkLoad,
+        final long BulkLoadStatements,
+        final long BulkLoadBytes,
+        final int ParseThreads,
+        final String StoreBackend,
+        final boolean InMemoryBuild,
+        final List<String> RDFFormats,
+        final Map<Pattern,List<String>> ResourceRDFFormats,
+        final long CompressMinSize,
+        final int QueryBatchSize,
+        final int QueryThreads,
+        final boolean QueryProfile,
+        final int QueryProfileExplain,
+        final QueryLimit DefaultQueryLimits,
+        final Map<String,QueryLimit> QueryLimits,
+        final String QueryLimitPolicy,
+        final int FetchRounds,
+        final int FetchThreads,
+        final int FetchTimeout,
+        final URI FetchEndpoint,
+        final String QueryResultFormat,
+        final int TripleIndexBudget,
+        final long StoreCacheMemory,
+        final boolean SPARQLCache,
+        final String SPARQLCacheSize,
+        final String SPARQLCacheKeys,
+        final String SPARQLCacheInactive,
+        final Map<String,String> HotQueries,
+        final int SPARQLClientConnections,
+        final int SPARQLQueue,
+        final int SPARQLConcurrency,
+        final int SPARQLMaxQueryTime,
+        final String ConfigHash
     ) {
         this.InputDirectory = inputdir;
         this.OutputDirectory = outpudir;
@@ -61,6 +180,43 @@ public final class RDFPUBConfig {
         this.IncludeFiles = IncludeFiles;
         this.ExcludeFiles = ExcludeFiles;
         this.CompressFiles = CompressFiles;
+        this.Parallelism = Parallelism;
+        this.Incremental = Incremental;
+        this.Pipeline = Pipeline;
+        this.PipelineCapacity = PipelineCapacity;
+        this.BulkLoad = BulkLoad;
+        this.BulkLoadStatements = BulkLoadStatements;
+        this.BulkLoadBytes = BulkLoadBytes;
+        this.ParseThreads = ParseThreads;
+        this.StoreBackend = StoreBackend;
+        this.InMemoryBuild = InMemoryBuild;
+        this.RDFFormats = RDFFormats;
+        this.ResourceRDFFormats = ResourceRDFFormats;
+        this.CompressMinSize = CompressMinSize;
+        this.QueryBatchSize = QueryBatchSize;
+        this.QueryThreads = QueryThreads;
+        this.QueryProfile = QueryProfile;
+        this.QueryProfileExplain = QueryProfileExplain;
+        this.DefaultQueryLimits = DefaultQueryLimits;
+        this.QueryLimits = QueryLimits;
+        this.QueryLimitPolicy = QueryLimitPolicy;
+        this.FetchRounds = FetchRounds;
+        this.FetchThreads = FetchThreads;
+        this.FetchTimeout = FetchTimeout;
+        this.FetchEndpoint = FetchEndpoint;
+        this.QueryResultFormat = QueryResultFormat;
+        this.TripleIndexBudget = TripleIndexBudget;
+        this.StoreCacheMemory = StoreCacheMemory;
+        this.SPARQLCache = SPARQLCache;
+        this.SPARQLCacheSize = SPARQLCacheSize;
+        this.SPARQLCacheKeys = SPARQLCacheKeys;
+        this.SPARQLCacheInactive = SPARQLCacheInactive;
+        this.HotQueries = HotQueries;
+        this.SPARQLClientConnections = SPARQLClientConnections;
+        this.SPARQLQueue = SPARQLQueue;
+        this.SPARQLConcurrency = SPARQLConcurrency;
+        this.SPARQLMaxQueryTime = SPARQLMaxQueryTime;
+        this.ConfigHash = ConfigHash;
     }
 
     // Function for shrinking a list down to a compact ArrayList
@@ -70,7 +226,21 @@ public final class RDFPUBConfig {
         return tempList;
     }
 
+    // SHA-256 of the .rdfpub as it was read, so that a build compares its manifest against the config it actually used
+    private static String hash(final String configstr) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(configstr.getBytes(StandardCharsets.UTF_8)));
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available",e);
+        }
+    }
+
     public static RDFPUBConfig load(final Path inputdir, final Path outputdir)throws IOException {
+        return load(inputdir,outputdir,false);
+    }
+
+    // Watch mode always builds incrementally
+    public static RDFPUBConfig load(final Path inputdir, final Path outputdir, final boolean watch) throws IOException {
         // Load YAML file
         final String configstr = Files.readString(inputdir.resolve(".rdfpub"));
         final Yaml yaml = new Yaml(new Constructor(RDFPUBConfigInternal.class));
@@ -93,6 +263,34 @@ public final class RDFPUBConfig {
             tempFileTypes.putAll(configInternal.FileTypes);
         }
 
+        // Hot query names become file names of their precomputed answers; keep them sorted for stable output
+        final Map<String,String> tempHotQueries = new TreeMap<>(configInternal.HotQueries);
+        for(final String name : tempHotQueries.keySet()) {
+            if(!name.matches("[A-Za-z0-9_-]+")) {
+                throw new IOException(String.format("Hot query name %s must only contain letters, digits, hyphens and underscores",name));
+            }
+        }
+
+        // Compile per-resource RDF formats, keeping their order since the first matching pattern wins
+        final Map<Pattern,List<String>> tempResourceRDFFormats = new LinkedHashMap<>();
+        for(final Map.Entry<String,List<String>> formats : configInternal.ResourceRDFFormats.entrySet()) {
+            tempResourceRDFFormats.put(Pattern.compile(formats.getKey()),shrinkList(formats.getValue()));
+        }
+
+        // Resolve per-query limits against the site-wide ones, by query file name
+        final QueryLimit defaultQueryLimits = new QueryLimit(Math.max(0,configInternal.QueryTimeout),Math.max(0,configInternal.QueryMaxRows),Math.max(0,configInternal.QueryMaxBytes));
+        final Map<String,QueryLimit> tempQueryLimits = new HashMap<>(configInternal.QueryLimits.size() * 2);
+        for(final Map.Entry<String,Map<String,Number>> limits : configInternal.QueryLimits.entrySet()) {
+            if(!Set.of("Timeout","MaxRows","MaxBytes").containsAll(limits.getValue().keySet())) {
+                throw new IOException(String.format("Query limits for %s must be among Timeout, MaxRows and MaxBytes",limits.getKey()));
+            }
+            tempQueryLimits.put(limits.getKey(),new QueryLimit(
+                Math.max(0,limits.getValue().getOrDefault("Timeout",defaultQueryLimits.timeout()).intValue()),
+                Math.max(0,limits.getValue().getOrDefault("MaxRows",defaultQueryLimits.maxRows()).longValue()),
+                Math.max(0,limits.getValue().getOrDefault("MaxBytes",defaultQueryLimits.maxBytes()).longValue())
+            ));
+        }
+
         // Return final config
         return new RDFPUBConfig(
             inputdir,
@@ -105,7 +303,44 @@ public final class RDFPUBConfig {
             tempFileTypes,
             shrinkList(configInternal.IncludeFiles),
             shrinkList(configInternal.ExcludeFiles),
-            shrinkList(configInternal.CompressFiles)
+            shrinkList(configInternal.CompressFiles),
+            configInternal.Parallelism > 0 ? configInternal.Parallelism : Runtime.getRuntime().availableProcessors(),
+            configInternal.Incremental || watch,
+            configInternal.Pipeline,
+            Math.max(1,configInternal.PipelineCapacity),
+            configInternal.BulkLoad,
+            configInternal.BulkLoadStatements,
+            configInternal.BulkLoadBytes,
+            configInternal.ParseThreads > 0 ? configInternal.ParseThreads : Runtime.getRuntime().availableProcessors(),
+            configInternal.StoreBackend.toLowerCase(Locale.ROOT),
+            configInternal.InMemoryBuild,
+            shrinkList(configInternal.RDFFormats),
+            tempResourceRDFFormats,
+            configInternal.CompressMinSize,
+            configInternal.QueryBatchSize,
+            configInternal.QueryThreads > 0 ? configInternal.QueryThreads : Runtime.getRuntime().availableProcessors(),
+            configInternal.QueryProfile,
+            Math.max(0,configInternal.QueryProfileExplain),
+            defaultQueryLimits,
+            tempQueryLimits,
+            configInternal.QueryLimitPolicy.toLowerCase(Locale.ROOT),
+            Math.max(0,configInternal.FetchRounds),
+            Math.max(1,configInternal.FetchThreads),
+            Math.max(1,configInternal.FetchTimeout),
+            configInternal.FetchEndpoint == null ? null : URI.create(configInternal.FetchEndpoint),
+            configInternal.QueryResultFormat.toLowerCase(Locale.ROOT),
+            Math.max(0,configInternal.TripleIndexBudget),
+            Math.max(0,configInternal.StoreCacheMemory),
+            configInternal.SPARQLCache,
+            configInternal.SPARQLCacheSize.trim(),
+            configInternal.SPARQLCacheKeys.trim(),
+            configInternal.SPARQLCacheInactive.trim(),
+            tempHotQueries,
+            Math.max(0,configInternal.SPARQLClientConnections),
+            Math.max(0,configInternal.SPARQLQueue),
+            configInternal.SPARQLConcurrency > 0 ? configInternal.SPARQLConcurrency : Runtime.getRuntime().availableProcessors() * 2,
+            Math.max(1,configInternal.SPARQLMaxQueryTime),
+            hash(configstr)
         );
     }
 
@@ -146,4 +381,162 @@ public final class RDFPUBConfig {
     public boolean cleanOutputDirectory() {
         return CleanOutputDirectory;
     }
+
+    public int getParallelism() {
+        return Parallelism;
+    }
+
+    public boolean isIncremental() {
+        return Incremental;
+    }
+
+    public boolean isPipelined() {
+        return Pipeline;
+    }
+
+    public int getPipelineCapacity() {
+        return PipelineCapacity;
+    }
+
+    public boolean isBulkLoad() {
+        return BulkLoad;
+    }
+
+    public long getBulkLoadStatements() {
+        return BulkLoadStatements;
+    }
+
+    public long getBulkLoadBytes() {
+        return BulkLoadBytes;
+    }
+
+    public int getParseThreads() {
+        return ParseThreads;
+    }
+
+    public String getStoreBackend() {
+        return StoreBackend;
+    }
+
+    public boolean isInMemoryBuild() {
+        return InMemoryBuild;
+    }
+
+    public List<String> getRDFFormats() {
+        return RDFFormats;
+    }
+
+    public Map<Pattern,List<String>> getResourceRDFFormats() {
+        return ResourceRDFFormats;
+    }
+
+    public long getCompressMinSize() {
+        return CompressMinSize;
+    }
+
+    public int getQueryBatchSize() {
+        return QueryBatchSize;
+    }
+
+    public int getQueryThreads() {
+        return QueryThreads;
+    }
+
+    public boolean isQueryProfile() {
+        return QueryProfile;
+    }
+
+    public int getQueryProfileExplain() {
+        return QueryProfileExplain;
+    }
+
+    public QueryLimit getDefaultQueryLimit() {
+        return DefaultQueryLimits;
+    }
+
+    public QueryLimit getQueryLimit(final String query) {
+        return QueryLimits.getOrDefault(query,DefaultQueryLimits);
+    }
+
+    public String getQueryLimitPolicy() {
+        return QueryLimitPolicy;
+    }
+
+    public int getFetchRounds() {
+        return FetchRounds;
+    }
+
+    public int getFetchThreads() {
+        return FetchThreads;
+    }
+
+    public int getFetchTimeout() {
+        return FetchTimeout;
+    }
+
+    public URI getFetchEndpoint() {
+        return FetchEndpoint;
+    }
+
+    public String getQueryResultFormat() {
+        return QueryResultFormat;
+    }
+
+    public int getTripleIndexBudget() {
+        return TripleIndexBudget;
+    }
+
+    public long getStoreCacheMemory() {
+        return StoreCacheMemory;
+    }
+
+    public boolean isSPARQLCache() {
+        return SPARQLCache;
+    }
+
+    public String getSPARQLCacheSize() {
+        return SPARQLCacheSize;
+    }
+
+    public String getSPARQLCacheKeys() {
+        return SPARQLCacheKeys;
+    }
+
+    public String getSPARQLCacheInactive() {
+        return SPARQLCacheInactive;
+    }
+
+    public Map<String,String> getHotQueries() {
+        return HotQueries;
+    }
+
+    public int getSPARQLClientConnections() {
+        return SPARQLClientConnections;
+    }
+
+    public int getSPARQLQueue() {
+        return SPARQLQueue;
+    }
+
+    public int getSPARQLConcurrency() {
+        return SPARQLConcurrency;
+    }
+
+    public int getSPARQLMaxQueryTime() {
+        return SPARQLMaxQueryTime;
+    }
+
+    public String getConfigHash() {
+        return ConfigHash;
+    }
+
+    // RDF formats written for the resource at the given URI path
+    public List<String> getRDFFormats(final String uriPath) {
+        for(final Map.Entry<Pattern,List<String>> formats : ResourceRDFFormats.entrySet()) {
+            if(formats.getKey().matcher(uriPath).find()) {
+                return formats.getValue();
+            }
+        }
+        return RDFFormats;
+    }
 }
@@ -0,0 +1,137 @@
+package pub.rdf.manifest;
+
+import pub.rdf.config.RDFPUBConfig;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+public final class BuildManifest {
+    public final static String FILENAME = "build.manifest";
+
+    private final RDFPUBConfig config;
+    private final Path file;
+    private final Map<String,String> previousFiles = new HashMap<>(1024);
+    private final Map<String,Set<String>> previousDirectories = new HashMap<>(256);
+    private final Map<String,String> currentFiles = new ConcurrentHashMap<>(1024);
+    private final Set<String> currentDirectories = ConcurrentHashMap.newKeySet(256);
+    private boolean configChanged = true;
+
+    // Hashes computed by this process keyed by path, reused while a file's size and modification time stay the same
+    private record HashedFile(long size, FileTime modified, String hash) {}
+    private final Map<String,HashedFile> hashes = new ConcurrentHashMap<>(1024);
+
+    public BuildManifest(final RDFPUBConfig config) {
+        this.config = config;
+        this.file = config.getOutputDirectory().resolve(FILENAME);
+    }
+
+    private String relative(final Path path) {
+        return config.getInputDirectory().relativize(path).toString();
+    }
+
+    private static String parent(final String path) {
+        final int i = path.lastIndexOf('/');
+        return i == -1 ? "" : path.substring(0,i);
+    }
+
+    private static String hash(final Path path) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available",e);
+        }
+        try(final InputStream in = new DigestInputStream(new BufferedInputStream(Files.newInputStream(path)),digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // Read the manifest of the previous successful build; a missing manifest or a changed .rdfpub means everything
+    // changed, though the outputs a previous build with another config left behind are still known for cleanup
+    public void load() throws IOException {
+        previousFiles.clear();
+        previousDirectories.clear();
+        currentFiles.clear();
+        currentDirectories.clear();
+        configChanged = true;
+
+        if(!Files.exists(file)) {
+            return;
+        }
+
+        final List<String> lines = Files.readAllLines(file);
+        configChanged = lines.isEmpty() || !lines.get(0).equals("C\t" + config.getConfigHash());
+
+        for(final String line : lines) {
+            final String[] fields = line.split("\t",3);
+            switch(fields[0]) {
+                case "R":
+                    previousDirectories.computeIfAbsent(fields[1],dir -> new HashSet<>(8));
+                    break;
+                case "F":
+                    previousFiles.put(fields[2],fields[1]);
+                    previousDirectories.computeIfAbsent(parent(fields[2]),dir -> new HashSet<>(8)).add(fields[2]);
+                    break;
+            }
+        }
+    }
+
+    // Whether files can be compared against the previous build, which takes one built with the same config
+    public boolean hasPrevious() {
+        return !configChanged && !previousDirectories.isEmpty();
+    }
+
+    public void addDirectory(final Path dir) {
+        currentDirectories.add(relative(dir));
+    }
+
+    // Hash an input file and record it, returning whether it differs from the previous build or that build used
+    // another config
+    public boolean update(final Path path) throws IOException {
+        final String relpath = relative(path);
+        final BasicFileAttributes attrs = Files.readAttributes(path,BasicFileAttributes.class);
+        HashedFile hashed = hashes.get(relpath);
+        if(hashed == null || hashed.size() != attrs.size() || !hashed.modified().equals(attrs.lastModifiedTime())) {
+            hashed = new HashedFile(attrs.size(),attrs.lastModifiedTime(),hash(path));
+            hashes.put(relpath,hashed);
+        }
+
+        final String filehash = hashed.hash();
+        currentFiles.put(relpath,filehash);
+        return configChanged || !filehash.equals(previousFiles.get(relpath));
+    }
+
+    // Input-relative paths of the files a directory had in the previous build
+    public Set<String> getPreviousFiles(final Path dir) {
+        return previousDirectories.getOrDefault(relative(dir),Collections.emptySet());
+    }
+
+    // Input-relative paths of directories that were built previously but no longer exist or are excluded
+    public Set<String> getRemovedDirectories() {
+        final Set<String> removed = new TreeSet<>(previousDirectories.keySet());
+        removed.removeAll(currentDirectories);
+        return removed;
+    }
+
+    public void save() throws IOException {
+        final Path temp = file.resolveSibling(FILENAME + ".tmp");
+        try(final BufferedWriter writer = Files.newBufferedWriter(temp)) {
+            writer.append("C\t").append(config.getConfigHash()).append('\n');
+            for(final String dir : new TreeSet<>(currentDirectories)) {
+                writer.append("R\t").append(dir).append('\n');
+            }
+            for(final Map.Entry<String,String> entry : new TreeMap<>(currentFiles).entrySet()) {
+                writer.append("F\t").append(entry.getValue()).append('\t').append(entry.getKey()).append('\n');
+            }
+        }
+        Files.move(temp,file,StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,243 @@
+package pub.rdf.query;
+
+import org.eclipse.rdf4j.common.transaction.IsolationLevels;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.sail.SailRepository;
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.eclipse.rdf4j.rio.RDFParseException;
+import org.eclipse.rdf4j.rio.Rio;
+import org.eclipse.rdf4j.sail.nativerdf.NativeStore;
+import pub.rdf.util.Program;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static pub.rdf.util.Program.out;
+
+// Fetches external linked-data documents for FetchableTupleQuery on a pool of threads and loads each one as a named
+// graph into a store of its own next to the cache, apart from the site's database, so that only the queries that fetch
+// a document see it and it's never published with the site. The store outlives builds like the cache. Document bodies are cached on disk by the SHA-256 of their contents, and every URL
+// records the body it last returned along with its validators, so later builds revalidate with conditional requests
+// instead of downloading unchanged documents again. Each document is fetched and loaded at most once per build.
+public final class DocumentFetcher implements AutoCloseable {
+    private final static String ACCEPT = "text/turtle, application/n-triples;q=0.9, application/ld+json;q=0.8, application/rdf+xml;q=0.8, */*;q=0.1";
+
+    // A cached document body and the validators its URL returned it with
+    private record Entry(String hash, String etag, String lastModified, String contentType) {}
+    private record Document(Path file, RDFFormat format, boolean changed) {}
+
+    private final Path objects;
+    private final Path urls;
+    private final URI endpoint;
+    private final Duration timeout;
+    private final ExecutorService threads;
+    private final HttpClient client;
+    private final Repository repository;
+    private final RepositoryConnection connection;
+    private final Map<String,CompletableFuture<Document>> fetches = new ConcurrentHashMap<>(64);
+    private final Map<IRI,CompletableFuture<Boolean>> loads = new ConcurrentHashMap<>(64);
+
+    // Documents are requested from the endpoint instead of their own hosts when one is given, keeping their paths
+    public DocumentFetcher(final Path cachedir, final URI endpoint, final int threads, final Duration timeout) throws IOException {
+        this.objects = Files.createDirectories(cachedir.resolve("objects"));
+        this.urls = Files.createDirectories(cachedir.resolve("urls"));
+        this.endpoint = endpoint;
+        this.timeout = timeout;
+        final AtomicInteger count = new AtomicInteger(0);
+        this.threads = Executors.newFixedThreadPool(threads,runnable -> {
+            final Thread thread = new Thread(runnable,"rdfpub-fetch-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.client = HttpClient.newBuilder()
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .connectTimeout(timeout)
+            .executor(this.threads)
+            .build();
+        this.repository = new SailRepository(new NativeStore(Files.createDirectories(cachedir.resolve("store")).toFile(),"spoc,posc,cspo"));
+        this.repository.init();
+        this.connection = repository.getConnection();
+    }
+
+    // A connection for reading fetched documents, which the caller closes
+    public RepositoryConnection getConnection() {
+        return repository.getConnection();
+    }
+
+    // Forget what this build fetched, so that the next build revalidates every document
+    public void reset() {
+        fetches.clear();
+        loads.clear();
+    }
+
+    // Make sure the document an IRI refers to is loaded into the graph named by the IRI; completes with false if
+    // the document couldn't be fetched or parsed
+    public CompletableFuture<Boolean> load(final IRI graph) {
+        return loads.computeIfAbsent(graph,iri -> {
+            final String url = documentURL(iri);
+            return fetches.computeIfAbsent(url,document -> CompletableFuture.supplyAsync(() -> fetch(document),threads))
+                .thenApplyAsync(document -> document != null && store(iri,url,document),threads);
+        });
+    }
+
+    private static String documentURL(final IRI iri) {
+        final String url = iri.stringValue();
+        return url.contains("#") ? url.substring(0,url.indexOf('#')) : url;
+    }
+
+    private URI requestURI(final String url) {
+        final URI uri = URI.create(url);
+        if(endpoint == null) {
+            return uri;
+        }
+        final String base = endpoint.toString().replaceAll("/+$","");
+        return URI.create(base + uri.getRawPath() + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery()));
+    }
+
+    private Document fetch(final String url) {
+        final Path meta = urls.resolve(sha256(url.getBytes(StandardCharsets.UTF_8)));
+        Entry cached = readEntry(meta);
+        if(cached != null && !Files.exists(objects.resolve(cached.hash()))) {
+            cached = null;
+        }
+
+        try {
+            final HttpRequest.Builder request = HttpRequest.newBuilder(requestURI(url))
+                .timeout(timeout)
+                .header("Accept",ACCEPT)
+                .header("User-Agent","rdfpub")
+                .GET();
+            if(cached != null && !cached.etag().isEmpty()) {
+                request.header("If-None-Match",cached.etag());
+            }
+            if(cached != null && !cached.lastModified().isEmpty()) {
+                request.header("If-Modified-Since",cached.lastModified());
+            }
+
+            final HttpResponse<byte[]> response = client.send(request.build(),HttpResponse.BodyHandlers.ofByteArray());
+            if(response.statusCode() == 304 && cached != null) {
+                out("Document %s is unchanged",url);
+                return document(url,cached,false);
+            }
+            if(response.statusCode() / 100 != 2) {
+                throw new IOException(String.format("HTTP status %s",response.statusCode()));
+            }
+
+            // Store the body by its contents, unless an identical body is already cached
+            final byte[] body = response.body();
+            final String hash = sha256(body);
+            final Path object = objects.resolve(hash);
+            if(!Files.exists(object)) {
+                final Path temp = Files.createTempFile(objects,hash,".tmp");
+                Files.write(temp,body);
+                Files.move(temp,object,StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+            }
+            final Entry entry = new Entry(
+                hash,
+                response.headers().firstValue("ETag").orElse(""),
+                response.headers().firstValue("Last-Modified").orElse(""),
+                response.headers().firstValue("Content-Type").orElse("")
+            );
+            writeEntry(meta,url,entry);
+            out("Fetched %s bytes from %s",body.length,url);
+            return document(url,entry,cached == null || !cached.hash().equals(hash));
+        } catch (final IOException | IllegalArgumentException e) {
+            if(cached != null) {
+                Program.err("WARNING: Unable to revalidate %s (%s); using cached copy",url,e.getMessage());
+                return document(url,cached,false);
+            }
+            Program.err("WARNING: Unable to fetch %s (%s); ignoring",url,e.getMessage());
+            return null;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    // Load a document into its graph, unless it's unchanged and the graph is already there from a previous build
+    private boolean store(final IRI graph, final String url, final Document document) {
+        synchronized(connection) {
+            if(!document.changed() && connection.hasStatement(null,null,null,false,graph)) {
+                return true;
+            }
+            try {
+                connection.begin(IsolationLevels.NONE);
+                connection.clear(graph);
+                connection.add(document.file().toFile(),url,document.format(),graph);
+                connection.commit();
+                out("Loaded %s into graph <%s>",url,graph);
+                return true;
+            } catch (final IOException | RDFParseException e) {
+                Program.err("WARNING: Unable to load %s (%s); ignoring",url,e.getMessage());
+                return false;
+            } finally {
+                if(connection.isActive()) {
+                    connection.rollback();
+                }
+            }
+        }
+    }
+
+    private Document document(final String url, final Entry entry, final boolean changed) {
+        final String mime = entry.contentType().split(";")[0].trim();
+        final RDFFormat format = Rio.getParserFormatForMIMEType(mime)
+            .orElse(Rio.getParserFormatForFileName(URI.create(url).getPath()).orElse(RDFFormat.TURTLE));
+        return new Document(objects.resolve(entry.hash()),format,changed);
+    }
+
+    private static Entry readEntry(final Path meta) {
+        try {
+            final List<String> lines = Files.readAllLines(meta);
+            final String[] fields = lines.get(1).split("\t",-1);
+            return new Entry(fields[0],fields[1],fields[2],fields[3]);
+        } catch (final IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // The URL on the first line, then its body hash, ETag, Last-Modified and Content-Type separated by tabs
+    private static void writeEntry(final Path meta, final String url, final Entry entry) throws IOException {
+        final Path temp = Files.createTempFile(meta.getParent(),meta.getFileName().toString(),".tmp");
+        try(final BufferedWriter writer = Files.newBufferedWriter(temp)) {
+            writer.append(url).append('\n');
+            writer.append(entry.hash()).append('\t')
+                .append(entry.etag()).append('\t')
+                .append(entry.lastModified()).append('\t')
+                .append(entry.contentType()).append('\n');
+        }
+        Files.move(temp,meta,StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String sha256(final byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        threads.shutdownNow();
+        connection.close();
+        repository.shutDown();
+    }
+}
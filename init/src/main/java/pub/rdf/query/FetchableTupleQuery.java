@@ -1,43 +1,181 @@
 package pub.rdf.query;
 
 import org.eclipse.rdf4j.common.annotation.Experimental;
+import org.eclipse.rdf4j.common.iteration.CloseableIteration;
 import org.eclipse.rdf4j.model.IRI;
 import org.eclipse.rdf4j.model.Value;
 import org.eclipse.rdf4j.query.*;
-import org.eclipse.rdf4j.query.algebra.Var;
+import org.eclipse.rdf4j.query.algebra.*;
+import org.eclipse.rdf4j.query.algebra.evaluation.EvaluationStrategy;
+import org.eclipse.rdf4j.query.algebra.evaluation.impl.EvaluationStatistics;
+import org.eclipse.rdf4j.query.algebra.evaluation.impl.StrictEvaluationStrategy;
+import org.eclipse.rdf4j.query.algebra.helpers.AbstractQueryModelVisitor;
 import org.eclipse.rdf4j.query.explanation.Explanation;
-
-import java.util.HashSet;
-import java.util.Set;
-
+import org.eclipse.rdf4j.query.impl.TupleQueryResultBuilder;
+import org.eclipse.rdf4j.query.parser.ParsedTupleQuery;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+// A tuple query that pulls external linked-data documents named in its GRAPH patterns in before it's evaluated.
+// Documents are the IRIs its GRAPH patterns name directly, plus the values its graph variables take in a probe of the
+// query with those GRAPH patterns left out. Loading new documents makes the query dirty, so it's probed again for
+// documents the new data refers to, until nothing new turns up or it has been dirty maxDirty times. Each evaluation
+// then sees the site's database along with just the documents it turned up, whatever other queries have fetched.
+// The probe can miss documents whose IRIs only pass filters on data inside them.
 public class FetchableTupleQuery implements TupleQuery {
     final private TupleQuery query;
+    final private ParsedTupleQuery parsed;
+    final private RepositoryConnection connection;
+    final private DocumentFetcher fetcher;
+    final private String baseURI;
+    final private Set<IRI> graphs = new HashSet<>(16);
     final private Set<IRI> externalResources = new HashSet<>(16);
     final private Set<Var> graphVars = new HashSet<>(16);
     private int dirtyCounter = 0;
     private boolean dirty = false;
     private final int maxDirty;
 
-    public FetchableTupleQuery(final TupleQuery query, final int maxDirty) {
+    public FetchableTupleQuery(final TupleQuery query, final ParsedTupleQuery parsed, final RepositoryConnection connection, final DocumentFetcher fetcher, final String baseURI, final int maxDirty) {
         this.query = query;
+        this.parsed = parsed;
+        this.connection = connection;
+        this.fetcher = fetcher;
+        this.baseURI = baseURI;
         this.maxDirty = maxDirty;
-    }
 
+        // Collect the graphs named by GRAPH patterns, and the variables that name them otherwise
+        parsed.getTupleExpr().visit(new AbstractQueryModelVisitor<RuntimeException>() {
+            @Override
+            public void meet(final StatementPattern node) {
+                if(isGraphPattern(node)) {
+                    if(!node.getContextVar().hasValue()) {
+                        graphVars.add(node.getContextVar());
+                    } else if(node.getContextVar().getValue().isIRI()) {
+                        graphs.add((IRI) node.getContextVar().getValue());
+                    }
+                }
+            }
+        });
+    }
+
+    private static boolean isGraphPattern(final StatementPattern pattern) {
+        return pattern.getScope() == StatementPattern.Scope.NAMED_CONTEXTS && pattern.getContextVar() != null;
+    }
+
+    public static boolean hasGraphPatterns(final TupleExpr expr) {
+        final boolean[] found = { false };
+        expr.visit(new AbstractQueryModelVisitor<RuntimeException>() {
+            @Override
+            public void meet(final StatementPattern node) {
+                found[0] |= isGraphPattern(node);
+            }
+        });
+        return found[0];
+    }
+
+    // External documents this query has loaded or tried to load so far
     public Set<IRI> getExternalResources() {
-        return null; // TODO implement this
+        return Collections.unmodifiableSet(externalResources);
+    }
+
+    private boolean isExternal(final IRI iri) {
+        return !iri.stringValue().startsWith(baseURI) && (iri.stringValue().startsWith("http://") || iri.stringValue().startsWith("https://"));
+    }
+
+    // Load external documents in rounds until the query stops turning up new ones, returning those of this evaluation
+    private Set<IRI> fetchExternalResources(final RepositoryConnection fetched) {
+        final Set<IRI> documents = new HashSet<>(16);
+        for(dirtyCounter = 0; dirtyCounter < maxDirty; dirtyCounter++) {
+            dirty = false;
+            final List<CompletableFuture<Boolean>> loads = new ArrayList<>(16);
+            for(final IRI graph : probe(fetched,documents)) {
+                if(isExternal(graph) && documents.add(graph)) {
+                    externalResources.add(graph);
+                    loads.add(fetcher.load(graph));
+                }
+            }
+            for(final CompletableFuture<Boolean> load : loads) {
+                dirty |= load.join();
+            }
+            if(!dirty) {
+                break;
+            }
+        }
+        return documents;
+    }
+
+    // Evaluate the query without its GRAPH patterns on graph variables, projected to those variables
+    private Set<IRI> probe(final RepositoryConnection fetched, final Set<IRI> documents) {
+        final Set<IRI> found = new HashSet<>(graphs);
+        if(graphVars.isEmpty()) {
+            return found;
+        }
+
+        TupleExpr expr = parsed.getTupleExpr().clone();
+        while(expr instanceof UnaryTupleOperator && !(expr instanceof Projection)) {
+            expr = ((UnaryTupleOperator) expr).getArg();
+        }
+        if(!(expr instanceof Projection)) {
+            return found;
+        }
+        final TupleExpr body = ((Projection) expr).getArg();
+        body.visit(new AbstractQueryModelVisitor<RuntimeException>() {
+            @Override
+            public void meet(final StatementPattern node) {
+                if(isGraphPattern(node) && graphVars.contains(node.getContextVar())) {
+                    node.replaceWith(new SingletonSet());
+                }
+            }
+        });
+        final ProjectionElemList names = new ProjectionElemList();
+        for(final Var var : graphVars) {
+            names.addElement(new ProjectionElem(var.getName()));
+        }
+
+        try(final CloseableIteration<? extends BindingSet, QueryEvaluationException> solutions = evaluate(new Distinct(new Projection(body,names)),fetched,documents)) {
+            while(solutions.hasNext()) {
+                for(final Binding binding : solutions.next()) {
+                    if(binding.getValue().isIRI()) {
+                        found.add((IRI) binding.getValue());
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    // Evaluate an expression over the site's database and the given fetched documents, within the query's time limit
+    private CloseableIteration<? extends BindingSet, QueryEvaluationException> evaluate(final TupleExpr expr, final RepositoryConnection fetched, final Set<IRI> documents) {
+        final Dataset dataset = query.getDataset() != null ? query.getDataset() : parsed.getDataset();
+        final EvaluationStrategy strategy = new StrictEvaluationStrategy(new FetchedTripleSource(connection,fetched,documents,query.getIncludeInferred()),dataset,null);
+        final TupleExpr optimized = strategy.optimize(new QueryRoot(expr.clone()),new EvaluationStatistics(),query.getBindings());
+        return PreparedQuery.limit(strategy.evaluate(optimized,query.getBindings()),query.getMaxExecutionTime());
     }
 
-    // Delegated methods
     @Override
     public TupleQueryResult evaluate() throws QueryEvaluationException {
-        return query.evaluate();
+        final TupleQueryResultBuilder builder = new TupleQueryResultBuilder();
+        evaluate(builder);
+        return builder.getQueryResult();
     }
 
     @Override
     public void evaluate(TupleQueryResultHandler tupleQueryResultHandler) throws QueryEvaluationException, TupleQueryResultHandlerException {
-        query.evaluate(tupleQueryResultHandler);
+        try(final RepositoryConnection fetched = fetcher.getConnection()) {
+            final Set<IRI> documents = fetchExternalResources(fetched);
+            try(final CloseableIteration<? extends BindingSet, QueryEvaluationException> solutions = evaluate(parsed.getTupleExpr(),fetched,documents)) {
+                tupleQueryResultHandler.startQueryResult(new ArrayList<>(parsed.getTupleExpr().getBindingNames()));
+                while(solutions.hasNext()) {
+                    tupleQueryResultHandler.handleSolution(solutions.next());
+                }
+                tupleQueryResultHandler.endQueryResult();
+            }
+        }
     }
 
+    // Delegated methods
     @Override
     @Deprecated
     public void setMaxQueryTime(int i) {
@@ -0,0 +1,58 @@
+package pub.rdf.query;
+
+import org.eclipse.rdf4j.common.iteration.CloseableIteration;
+import org.eclipse.rdf4j.common.iteration.ExceptionConvertingIteration;
+import org.eclipse.rdf4j.common.iteration.UnionIteration;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.query.QueryEvaluationException;
+import org.eclipse.rdf4j.query.algebra.evaluation.TripleSource;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+
+import java.util.Arrays;
+import java.util.Set;
+
+// The statements of the site's database together with those of the fetched documents that one evaluation of a
+// FetchableTupleQuery loaded, so that no other query, and no other evaluation, sees what it fetched
+final class FetchedTripleSource implements TripleSource {
+    private final RepositoryConnection site;
+    private final RepositoryConnection fetched;
+    private final Resource[] documents;
+    private final boolean includeInferred;
+
+    FetchedTripleSource(final RepositoryConnection site, final RepositoryConnection fetched, final Set<IRI> documents, final boolean includeInferred) {
+        this.site = site;
+        this.fetched = fetched;
+        this.documents = documents.toArray(new Resource[0]);
+        this.includeInferred = includeInferred;
+    }
+
+    @Override
+    public CloseableIteration<? extends Statement, QueryEvaluationException> getStatements(final Resource subj, final IRI pred, final Value obj, final Resource... contexts) throws QueryEvaluationException {
+        // Documents only ever add named graphs, and only those of this evaluation's documents
+        final Resource[] graphs = contexts.length == 0 ? documents : Arrays.stream(contexts)
+            .filter(context -> context != null && Arrays.asList(documents).contains(context))
+            .toArray(Resource[]::new);
+        if(graphs.length == 0) {
+            return statements(site,subj,pred,obj,contexts);
+        }
+        return new UnionIteration<>(statements(site,subj,pred,obj,contexts),statements(fetched,subj,pred,obj,graphs));
+    }
+
+    private CloseableIteration<Statement, QueryEvaluationException> statements(final RepositoryConnection connection, final Resource subj, final IRI pred, final Value obj, final Resource... contexts) {
+        return new ExceptionConvertingIteration<Statement, QueryEvaluationException>(connection.getStatements(subj,pred,obj,includeInferred,contexts)) {
+            @Override
+            protected QueryEvaluationException convert(final Exception e) {
+                return e instanceof QueryEvaluationException ? (QueryEvaluationException) e : new QueryEvaluationException(e);
+            }
+        };
+    }
+
+    @Override
+    public ValueFactory getValueFactory() {
+        return site.getValueFactory();
+    }
+}
@@ -0,0 +1,162 @@
+package pub.rdf.query;
+
+import org.eclipse.rdf4j.query.MalformedQueryException;
+import org.eclipse.rdf4j.query.QueryLanguage;
+import org.eclipse.rdf4j.query.algebra.BindingSetAssignment;
+import org.eclipse.rdf4j.query.algebra.StatementPattern;
+import org.eclipse.rdf4j.query.algebra.Var;
+import org.eclipse.rdf4j.query.algebra.helpers.AbstractQueryModelVisitor;
+import org.eclipse.rdf4j.query.parser.ParsedQuery;
+import org.eclipse.rdf4j.query.parser.QueryParserUtil;
+import pub.rdf.config.RDFPUBConfig;
+import pub.rdf.resource.ResourceFile;
+import pub.rdf.traversal.ResourceFilter;
+import pub.rdf.util.Program;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static pub.rdf.util.Program.out;
+
+// Chooses the triple indexes of the store from the queries of the input tree. Every triple pattern is classified by
+// which of its subject, predicate, object and context are bound when it is evaluated, assuming that patterns with the
+// most bound positions are evaluated first and bind their variables for the rest, and that ?resource and ?language
+// are bound by the page. An index serves a pattern as far as its leading positions are bound, so indexes are picked
+// greedily by how many more bound positions they serve across all patterns, until the budget is spent.
+public final class IndexAdvisor {
+    private final static String POSITIONS = "spoc";
+
+    // The builder clears and exports resources graph by graph, so the context index always comes first
+    private final static String FIRST = "cspo";
+
+    private final static Set<String> BOUND = Set.of("resource","language");
+
+    // Uses of every class of triple pattern, keyed by its bound positions in spoc order
+    private final Map<String,Integer> patterns = new TreeMap<>();
+    private int queries = 0;
+
+    // Classify the triple patterns of every query file the build would read
+    public static IndexAdvisor scan(final RDFPUBConfig config) throws IOException {
+        final IndexAdvisor advisor = new IndexAdvisor();
+        final ResourceFilter filter = new ResourceFilter(config);
+        final List<Path> files;
+        try(final Stream<Path> walk = Files.walk(config.getInputDirectory())) {
+            files = walk.filter(file -> Files.isRegularFile(file) && filter.isAccepted(file))
+                .filter(file -> Set.of("rq","sparql").contains(new ResourceFile(file).getExtension()))
+                .sorted()
+                .collect(Collectors.toList());
+        }
+        for(final Path file : files) {
+            try {
+                advisor.add(PreparedQuery.withPrefixes(Files.readString(file),config.getPrefixes()),config.getBaseURI().toString());
+            } catch (final MalformedQueryException e) {
+                Program.err("WARNING: Unable to parse %s for index advice; ignoring",file);
+            }
+        }
+        return advisor;
+    }
+
+    public void add(final String text, final String baseURI) {
+        final ParsedQuery parsed = QueryParserUtil.parseQuery(QueryLanguage.SPARQL,text,baseURI);
+        final List<StatementPattern> remaining = new ArrayList<>(16);
+        final Set<String> bound = new HashSet<>(BOUND);
+        parsed.getTupleExpr().visit(new AbstractQueryModelVisitor<RuntimeException>() {
+            @Override
+            public void meet(final StatementPattern node) {
+                remaining.add(node);
+            }
+
+            @Override
+            public void meet(final BindingSetAssignment node) {
+                bound.addAll(node.getBindingNames());
+            }
+        });
+
+        // Evaluate the most bound pattern next, binding its variables for those after it
+        while(!remaining.isEmpty()) {
+            final StatementPattern next = Collections.max(remaining,Comparator.comparingInt(pattern -> boundPositions(pattern,bound).length()));
+            remaining.remove(next);
+            patterns.merge(boundPositions(next,bound),1,Integer::sum);
+            for(final Var var : next.getVarList()) {
+                bound.add(var.getName());
+            }
+        }
+        queries++;
+    }
+
+    private static String boundPositions(final StatementPattern pattern, final Set<String> bound) {
+        final Var[] vars = { pattern.getSubjectVar(), pattern.getPredicateVar(), pattern.getObjectVar(), pattern.getContextVar() };
+        final StringBuilder positions = new StringBuilder(4);
+        for(int i = 0; i < vars.length; i++) {
+            if(vars[i] != null && (vars[i].hasValue() || bound.contains(vars[i].getName()))) {
+                positions.append(POSITIONS.charAt(i));
+            }
+        }
+        return positions.toString();
+    }
+
+    // Leading positions of an index that are bound in a pattern
+    private static int served(final String index, final String positions) {
+        int served = 0;
+        while(served < index.length() && positions.indexOf(index.charAt(served)) >= 0) {
+            served++;
+        }
+        return served;
+    }
+
+    // Pick at most budget indexes, stopping early once no other index would serve any more bound positions
+    public List<String> advise(final int budget) {
+        final List<String> indexes = new ArrayList<>(List.of(FIRST));
+        final List<String> candidates = new ArrayList<>(24);
+        permutations("",POSITIONS,candidates);
+        candidates.remove(FIRST);
+
+        while(indexes.size() < budget) {
+            String best = null;
+            long bestGain = 0;
+            for(final String candidate : candidates) {
+                long gain = 0;
+                for(final Map.Entry<String,Integer> pattern : patterns.entrySet()) {
+                    final int current = indexes.stream().mapToInt(index -> served(index,pattern.getKey())).max().orElse(0);
+                    gain += (long) Math.max(0,served(candidate,pattern.getKey()) - current) * pattern.getValue();
+                }
+                if(gain > bestGain) {
+                    best = candidate;
+                    bestGain = gain;
+                }
+            }
+            if(best == null) {
+                break;
+            }
+            indexes.add(best);
+            candidates.remove(best);
+        }
+
+        // Summarize how well the chosen indexes serve every class of pattern
+        out("Classified the triple patterns of %s queries",queries);
+        for(final Map.Entry<String,Integer> pattern : patterns.entrySet()) {
+            final String index = indexes.stream().max(Comparator.comparingInt(candidate -> served(candidate,pattern.getKey()))).orElse(FIRST);
+            out("Triple patterns with %s bound (%s uses) are served by %s on %s of %s positions",
+                pattern.getKey().isEmpty() ? "nothing" : pattern.getKey(),
+                pattern.getValue(),
+                index,
+                served(index,pattern.getKey()),
+                pattern.getKey().length()
+            );
+        }
+        return indexes;
+    }
+
+    private static void permutations(final String prefix, final String rest, final List<String> permutations) {
+        if(rest.isEmpty()) {
+            permutations.add(prefix);
+        }
+        for(int i = 0; i < rest.length(); i++) {
+            permutations(prefix + rest.charAt(i),rest.substring(0,i) + rest.substring(i + 1),permutations);
+        }
+    }
+}
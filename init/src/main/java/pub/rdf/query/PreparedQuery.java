@@ -0,0 +1,386 @@
+package pub.rdf.query;
+
+import org.eclipse.rdf4j.common.iteration.CloseableIteration;
+import org.eclipse.rdf4j.common.iteration.TimeLimitIteration;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.QueryEvaluationException;
+import org.eclipse.rdf4j.query.QueryInterruptedException;
+import org.eclipse.rdf4j.query.QueryLanguage;
+import org.eclipse.rdf4j.query.TupleQuery;
+import org.eclipse.rdf4j.query.algebra.*;
+import org.eclipse.rdf4j.query.algebra.evaluation.QueryBindingSet;
+import org.eclipse.rdf4j.query.algebra.helpers.AbstractQueryModelVisitor;
+import org.eclipse.rdf4j.query.impl.EmptyBindingSet;
+import org.eclipse.rdf4j.query.parser.ParsedTupleQuery;
+import org.eclipse.rdf4j.query.parser.QueryPrologLexer;
+import org.eclipse.rdf4j.query.parser.QueryParserUtil;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.sail.SailRepositoryConnection;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+// A prepared layout query along with its text and the variables its algebra uses, which decide
+// whether its results depend on the ?resource and ?language bindings of the page being rendered
+public final class PreparedQuery {
+    private final static Set<String> BOUND = Set.of("resource","language");
+
+    // Bindings of one page a query is evaluated for; the language is null for queries that don't use it
+    public record Binding(String resource, String language) {}
+
+    private final String text;
+    private final String baseURI;
+    private final DocumentFetcher fetcher;
+    private final int fetchRounds;
+    private final RepositoryConnection connection;
+    private final TupleQuery query;
+    private final ParsedTupleQuery parsed;
+    private final List<String> bindingNames;
+    private final Set<String> variables;
+    private final boolean batchable;
+
+    // Time spent parsing and preparing the query, or only preparing it for a copy, until it's taken for a profile
+    private final AtomicLong prepareNanos;
+
+    public PreparedQuery(final RepositoryConnection connection, final String text, final String baseURI) {
+        this(connection, text, baseURI, null, 0);
+    }
+
+    // Queries with GRAPH patterns fetch the external documents they name when given a fetcher and rounds of fetching
+    public PreparedQuery(final RepositoryConnection connection, final String text, final String baseURI, final DocumentFetcher fetcher, final int fetchRounds) {
+        this.text = text;
+        this.baseURI = baseURI;
+        this.fetcher = fetcher;
+        this.fetchRounds = fetchRounds;
+        this.connection = connection;
+        final long start = System.nanoTime();
+        this.parsed = QueryParserUtil.parseTupleQuery(QueryLanguage.SPARQL, text, baseURI);
+        this.query = prepare(connection);
+        this.prepareNanos = new AtomicLong(System.nanoTime() - start);
+        this.variables = variables(parsed.getTupleExpr());
+
+        final Projection projection = projection(parsed.getTupleExpr());
+        this.bindingNames = projection == null ? List.of() : List.copyOf(projection.getProjectionElemList().getTargetNames());
+        this.batchable = projection != null && usesResource() && connection instanceof SailRepositoryConnection && !(query instanceof FetchableTupleQuery) && batchable(parsed.getTupleExpr(),projection);
+    }
+
+    // Copy of a prepared query for another connection, which keeps the analysis but has its own mutable bindings
+    private PreparedQuery(final PreparedQuery prepared, final RepositoryConnection connection) {
+        this.text = prepared.text;
+        this.baseURI = prepared.baseURI;
+        this.fetcher = prepared.fetcher;
+        this.fetchRounds = prepared.fetchRounds;
+        this.connection = connection;
+        this.parsed = prepared.parsed;
+        final long start = System.nanoTime();
+        this.query = prepare(connection);
+        this.prepareNanos = new AtomicLong(System.nanoTime() - start);
+        this.variables = prepared.variables;
+        this.bindingNames = prepared.bindingNames;
+        this.batchable = prepared.batchable && connection instanceof SailRepositoryConnection;
+    }
+
+    private TupleQuery prepare(final RepositoryConnection connection) {
+        final TupleQuery prepared = connection.prepareTupleQuery(QueryLanguage.SPARQL, text, baseURI);
+        if(fetcher != null && fetchRounds > 0 && FetchableTupleQuery.hasGraphPatterns(parsed.getTupleExpr())) {
+            return new FetchableTupleQuery(prepared, parsed, connection, fetcher, baseURI, fetchRounds);
+        }
+        return prepared;
+    }
+
+    public PreparedQuery copy(final RepositoryConnection connection) {
+        return new PreparedQuery(this, connection);
+    }
+
+    // The preparation time of this query the first time it's asked for and nothing after, so that it counts once
+    public long takePrepareNanos() {
+        return prepareNanos.getAndSet(0);
+    }
+
+    // Prepend the global prefixes a query doesn't declare itself
+    public static String withPrefixes(final String query, final Map<String,String> prefixes) {
+        // Find existing namespaces in query
+        final Set<String> queryPrefixes = QueryPrologLexer
+            .lex(query)
+            .stream()
+            .filter(token -> token.getType() == QueryPrologLexer.TokenType.PREFIX)
+            .map(QueryPrologLexer.Token::getStringValue)
+            .collect(Collectors.toSet())
+        ;
+
+        // Create set of global prefixes with existing query prefixes removed
+        final StringBuilder prefixStringBuilder = new StringBuilder(512);
+        final String globalPrefixes = prefixes
+            .entrySet()
+            .stream()
+            .filter(prefix -> !queryPrefixes.contains(prefix.getKey()))
+            .reduce(prefixStringBuilder,(sb, prefix) ->
+                sb.append("PREFIX ")
+                .append(prefix.getKey())
+                .append(": <")
+                .append(prefix.getValue())
+                .append(">\n"),
+            StringBuilder::append)
+            .toString()
+        ;
+        return globalPrefixes + query;
+    }
+
+    private static Set<String> variables(final TupleExpr expr) {
+        final Set<String> variables = new HashSet<>(16);
+        expr.visit(new AbstractQueryModelVisitor<RuntimeException>() {
+            @Override
+            public void meet(final Var node) {
+                if(!node.hasValue()) {
+                    variables.add(node.getName());
+                }
+            }
+
+            @Override
+            public void meet(final ExtensionElem node) {
+                variables.add(node.getName());
+                super.meet(node);
+            }
+
+            @Override
+            public void meet(final ProjectionElem node) {
+                variables.add(node.getSourceName());
+                super.meet(node);
+            }
+
+            @Override
+            public void meet(final BindingSetAssignment node) {
+                variables.addAll(node.getBindingNames());
+                super.meet(node);
+            }
+        });
+        return variables;
+    }
+
+    private static Projection projection(TupleExpr expr) {
+        while(expr instanceof Distinct || expr instanceof Reduced || expr instanceof Slice) {
+            expr = ((UnaryTupleOperator) expr).getArg();
+        }
+        return expr instanceof Projection ? (Projection) expr : null;
+    }
+
+    // The spine runs from the projection down through filters, BINDs, ordering and the left sides of joins
+    // and OPTIONALs; everything along it is evaluated with a VALUES block joined in at its bottom in scope
+    private static TupleExpr spineChild(final TupleExpr node) {
+        if(node instanceof Group || node instanceof Slice) {
+            return null;
+        } else if(node instanceof UnaryTupleOperator) {
+            return ((UnaryTupleOperator) node).getArg();
+        } else if(node instanceof Join || node instanceof LeftJoin) {
+            return ((BinaryTupleOperator) node).getLeftArg();
+        }
+        return null;
+    }
+
+    // Joining a VALUES block of ?resource and ?language is only equivalent to binding them one page at a time if no
+    // aggregate, subquery or slice sees the whole batch, nothing assigns them, and every filter or BIND that reads
+    // them sits on the spine, above the join; OPTIONAL patterns off the spine must not use them either
+    private static boolean batchable(final TupleExpr expr, final Projection projection) {
+        final Set<QueryModelNode> spine = Collections.newSetFromMap(new IdentityHashMap<>());
+        for(TupleExpr node = projection; node != null; node = spineChild(node)) {
+            spine.add(node);
+        }
+
+        final boolean[] safe = { true };
+        expr.visit(new AbstractQueryModelVisitor<RuntimeException>() {
+            private final Deque<QueryModelNode> owners = new ArrayDeque<>();
+            private int optional = 0;
+
+            private void reads(final QueryModelNode owner, final QueryModelNode expr) {
+                owners.push(owner);
+                expr.visit(this);
+                owners.pop();
+            }
+
+            @Override
+            public void meet(final Var node) {
+                if(!node.hasValue() && BOUND.contains(node.getName())) {
+                    if(owners.isEmpty() ? optional > 0 : !spine.contains(owners.peekLast())) {
+                        safe[0] = false;
+                    }
+                }
+            }
+
+            @Override
+            public void meet(final Filter node) {
+                node.getArg().visit(this);
+                reads(node,node.getCondition());
+            }
+
+            @Override
+            public void meet(final Extension node) {
+                node.getArg().visit(this);
+                for(final ExtensionElem elem : node.getElements()) {
+                    if(BOUND.contains(elem.getName())) {
+                        safe[0] = false;
+                    }
+                    reads(node,elem.getExpr());
+                }
+            }
+
+            // The left side of an OPTIONAL on the spine always binds them, so its right side only adds constraints
+            @Override
+            public void meet(final LeftJoin node) {
+                node.getLeftArg().visit(this);
+                final int nested = spine.contains(node) ? 0 : 1;
+                optional += nested;
+                node.getRightArg().visit(this);
+                optional -= nested;
+                if(node.hasCondition()) {
+                    reads(node,node.getCondition());
+                }
+            }
+
+            @Override
+            public void meet(final BindingSetAssignment node) {
+                if(node.getBindingNames().stream().anyMatch(BOUND::contains)) {
+                    safe[0] = false;
+                }
+            }
+
+            @Override
+            public void meet(final Projection node) {
+                if(node != projection) {
+                    safe[0] = false;
+                }
+                super.meet(node);
+            }
+
+            @Override
+            public void meet(final Group node) {
+                safe[0] = false;
+            }
+
+            @Override
+            public void meet(final Slice node) {
+                safe[0] = false;
+            }
+
+            @Override
+            public void meet(final Difference node) {
+                safe[0] = false;
+            }
+
+            @Override
+            public void meet(final Service node) {
+                safe[0] = false;
+            }
+        });
+        return safe[0];
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public RepositoryConnection getConnection() {
+        return connection;
+    }
+
+    public TupleQuery getQuery() {
+        return query;
+    }
+
+    public List<String> getBindingNames() {
+        return bindingNames;
+    }
+
+    public boolean usesResource() {
+        return variables.contains("resource");
+    }
+
+    public boolean usesLanguage() {
+        return variables.contains("language");
+    }
+
+    public boolean isBatchable() {
+        return batchable;
+    }
+
+    // Bind the page being rendered for a single evaluation
+    public TupleQuery bind(final IRI resource, final String language) {
+        query.setBinding("resource", resource);
+        query.setBinding("language", SimpleValueFactory.getInstance().createLiteral(language));
+        return query;
+    }
+
+    public Binding binding(final IRI resource, final String language) {
+        return new Binding(resource.stringValue(), usesLanguage() ? language : null);
+    }
+
+    // Evaluate once for many pages by joining a VALUES block of their bindings in at the bottom of the spine,
+    // then split the solutions back up by page, projected to the query's own binding names; a timeout in seconds
+    // applies to the whole batch, and zero means no timeout
+    public Map<Binding,List<BindingSet>> evaluate(final Collection<Binding> bindings, final int timeout) {
+        final ValueFactory rdf = SimpleValueFactory.getInstance();
+        final Set<String> names = usesLanguage() ? BOUND : Set.of("resource");
+        final Map<Binding,List<BindingSet>> results = new LinkedHashMap<>();
+        final List<BindingSet> rows = new ArrayList<>(bindings.size());
+        for(final Binding binding : bindings) {
+            if(results.putIfAbsent(binding,new ArrayList<>()) == null) {
+                final QueryBindingSet row = new QueryBindingSet(2);
+                row.addBinding("resource",rdf.createIRI(binding.resource()));
+                if(usesLanguage()) {
+                    row.addBinding("language",rdf.createLiteral(binding.language()));
+                }
+                rows.add(row);
+            }
+        }
+        final BindingSetAssignment values = new BindingSetAssignment();
+        values.setBindingNames(names);
+        values.setBindingSets(rows);
+
+        // Rewrite a copy of the query
+        final TupleExpr expr = parsed.getTupleExpr().clone();
+        final Projection projection = projection(expr);
+        TupleExpr bottom = projection;
+        for(TupleExpr child = spineChild(bottom); child != null; child = spineChild(child)) {
+            bottom = child;
+        }
+        bottom.getParentNode().replaceChildNode(bottom,new Join(values,bottom.clone()));
+        for(final String name : names) {
+            if(!projection.getProjectionElemList().getTargetNames().contains(name)) {
+                projection.getProjectionElemList().addElement(new ProjectionElem(name));
+            }
+        }
+
+        try(final CloseableIteration<? extends BindingSet, QueryEvaluationException> solutions = limit(((SailRepositoryConnection) connection).getSailConnection().evaluate(expr,parsed.getDataset(),EmptyBindingSet.getInstance(),query.getIncludeInferred()),timeout)) {
+            while(solutions.hasNext()) {
+                final BindingSet solution = solutions.next();
+                final QueryBindingSet projected = new QueryBindingSet(bindingNames.size());
+                for(final String name : bindingNames) {
+                    if(solution.hasBinding(name)) {
+                        projected.addBinding(solution.getBinding(name));
+                    }
+                }
+                final Binding binding = new Binding(solution.getValue("resource").stringValue(),usesLanguage() ? solution.getValue("language").stringValue() : null);
+                results.computeIfAbsent(binding,page -> new ArrayList<>()).add(projected);
+            }
+        }
+        return results;
+    }
+
+    // Interrupt an evaluation once it runs past a timeout in seconds, even while it's blocked finding its next
+    // solution, like the time limit of a single query; zero means no timeout
+    static CloseableIteration<? extends BindingSet, QueryEvaluationException> limit(final CloseableIteration<? extends BindingSet, QueryEvaluationException> solutions, final int timeout) {
+        if(timeout <= 0) {
+            return solutions;
+        }
+        return new TimeLimitIteration<BindingSet, QueryEvaluationException>(solutions,TimeUnit.SECONDS.toMillis(timeout)) {
+            @Override
+            protected void throwInterruptedException() throws QueryEvaluationException {
+                throw new QueryInterruptedException(String.format("Query evaluation exceeded %s seconds",timeout));
+            }
+        };
+    }
+}
@@ -2,8 +2,8 @@ package pub.rdf.resource;
 
 import org.eclipse.rdf4j.model.IRI;
 import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
-import org.eclipse.rdf4j.query.TupleQuery;
 import pub.rdf.config.RDFPUBConfig;
+import pub.rdf.query.PreparedQuery;
 
 import java.net.URI;
 import java.nio.file.Path;
@@ -11,21 +11,27 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 public class RDFPUBResource implements IRI {
     private final IRI iri;
     private final URI uri;
-    private final Map<String,String> namespaces = new HashMap<>(8);
+    private final Map<String,String> namespaces = new ConcurrentHashMap<>(8);
+    private final Path inputPath;
     private final Path resourcePath;
     private final Path layoutPath;
     private boolean hasData = false;
-    private final Map<String, TupleQuery> queries = new HashMap<>(16);
+    private boolean dataChanged = true;
+    private boolean layoutChanged = true;
+    private final Set<Path> unchangedFiles = new HashSet<>(8);
+    private final Map<String, PreparedQuery> queries = new HashMap<>(16);
 
     private final Set<ResourceFile> indexTemplates = new HashSet<>(8);
     private final Map<String,ResourceFile> partialTemplates = new HashMap<>(8);
 
     public RDFPUBResource(final RDFPUBConfig config, final Path path) {
+        this.inputPath = config.getInputDirectory().resolve(path);
         this.resourcePath = config.getOutputDirectory().resolve("resources").resolve(path);
         this.layoutPath = config.getOutputDirectory().resolve("layouts").resolve(path);
         this.uri = config.getBaseURI().resolve(path.toString());
@@ -84,12 +90,16 @@ public class RDFPUBResource implements IRI {
         return this.namespaces;
     }
 
-    public Map<String,TupleQuery> getQueries() {
+    public Map<String,PreparedQuery> getQueries() {
         return queries;
     }
 
     public Set<String> getLanguages() { return indexTemplates.stream().map(ResourceFile::getLanguage).collect(Collectors.toSet()); }
 
+    public Path getInputPath() {
+        return inputPath;
+    }
+
     public Path getResourcePath() {
         return resourcePath;
     }
@@ -131,4 +141,24 @@ public class RDFPUBResource implements IRI {
     public void hasData(final boolean does) {
         hasData = does;
     }
+
+    public boolean dataChanged() {
+        return dataChanged;
+    }
+
+    public void dataChanged(final boolean did) {
+        dataChanged = did;
+    }
+
+    public boolean layoutChanged() {
+        return layoutChanged;
+    }
+
+    public void layoutChanged(final boolean did) {
+        layoutChanged = did;
+    }
+
+    public Set<Path> getUnchangedFiles() {
+        return unchangedFiles;
+    }
 }
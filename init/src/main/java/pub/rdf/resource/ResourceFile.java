@@ -56,6 +56,28 @@ public class ResourceFile {
         this.language = language;
     }
 
+    public boolean isRDF() {
+        if(extension == null) {
+            return false;
+        }
+        switch(extension) {
+            case "ttl":
+            case "rdf":
+            case "rdfxml":
+            case "nt":
+            case "ntriples":
+            case "json":
+            case "jsonld":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public boolean isQuery() {
+        return "rq".equals(extension) || "sparql".equals(extension);
+    }
+
     public boolean isTemplate() {
         return "handlebars".equals(extension) || "hbs".equals(extension);
     }
@@ -0,0 +1,68 @@
+package pub.rdf.runtime;
+
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.vocabulary.RDF;
+import org.eclipse.rdf4j.query.algebra.StatementPattern;
+import org.eclipse.rdf4j.query.algebra.Var;
+import org.eclipse.rdf4j.query.algebra.evaluation.impl.EvaluationStatistics;
+
+// Cardinality estimates for join ordering from the statistics of the build. A pattern with a known predicate starts
+// from that predicate's statements, or the instances of a class for rdf:type with a known class, and is narrowed by
+// the average statements per distinct subject and object when those are known, then by the share of statements in
+// its graph. Patterns without a known predicate are left to the store's own statistics.
+public final class BuildEvaluationStatistics extends EvaluationStatistics {
+    private final BuildStatistics statistics;
+    private final EvaluationStatistics fallback;
+
+    public BuildEvaluationStatistics(final BuildStatistics statistics, final EvaluationStatistics fallback) {
+        this.statistics = statistics;
+        this.fallback = fallback;
+    }
+
+    @Override
+    protected CardinalityCalculator createCardinalityCalculator() {
+        return new CardinalityCalculator() {
+            @Override
+            protected double getCardinality(final StatementPattern sp) {
+                return cardinality(sp);
+            }
+        };
+    }
+
+    double cardinality(final StatementPattern sp) {
+        final Value subject = value(sp.getSubjectVar());
+        final Value predicate = value(sp.getPredicateVar());
+        final Value object = value(sp.getObjectVar());
+        final Value context = value(sp.getContextVar());
+        if(predicate == null || !predicate.isIRI()) {
+            return fallback.getCardinality(sp);
+        }
+
+        // The database never changes at runtime, so a predicate it lacks matches nothing
+        final BuildStatistics.Predicate counts = statistics.getPredicate(predicate.stringValue());
+        if(counts == null) {
+            return 0;
+        }
+
+        double cardinality;
+        if(RDF.TYPE.equals(predicate) && object != null) {
+            cardinality = statistics.getClassInstances(object.stringValue());
+        } else {
+            cardinality = counts.statements();
+            if(object != null) {
+                cardinality /= Math.max(1,counts.objects());
+            }
+        }
+        if(subject != null) {
+            cardinality /= Math.max(1,counts.subjects());
+        }
+        if(context != null && statistics.getStatements() > 0) {
+            cardinality = cardinality * statistics.getGraphStatements(context.stringValue()) / statistics.getStatements();
+        }
+        return cardinality;
+    }
+
+    private static Value value(final Var var) {
+        return var == null ? null : var.getValue();
+    }
+}
@@ -0,0 +1,52 @@
+package pub.rdf.runtime;
+
+import org.eclipse.rdf4j.query.Dataset;
+import org.eclipse.rdf4j.query.algebra.evaluation.EvaluationStrategy;
+import org.eclipse.rdf4j.query.algebra.evaluation.TripleSource;
+import org.eclipse.rdf4j.query.algebra.evaluation.impl.EvaluationStatistics;
+import org.eclipse.rdf4j.query.algebra.evaluation.impl.StrictEvaluationStrategyFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+// Strict evaluation with join ordering from the statistics of the build. The SPARQL server creates this factory by
+// class name from the repository config that the build writes next to the store, and names the statistics file next
+// to the store in the pub.rdf.statistics system property before it opens the repository; otherwise the file is looked
+// for in the working directory. Without a readable statistics file, evaluation falls back to the store's own statistics.
+public class BuildEvaluationStrategyFactory extends StrictEvaluationStrategyFactory {
+    private final static Logger logger = LoggerFactory.getLogger(BuildEvaluationStrategyFactory.class);
+
+    private final BuildStatistics statistics;
+
+    public BuildEvaluationStrategyFactory() {
+        this(Paths.get(System.getProperty("pub.rdf.statistics",BuildStatistics.FILENAME)));
+    }
+
+    public BuildEvaluationStrategyFactory(final Path file) {
+        this.statistics = load(file);
+    }
+
+    private static BuildStatistics load(final Path file) {
+        if(!Files.isReadable(file)) {
+            logger.warn("No statistics file at {}; using store statistics",file);
+            return null;
+        }
+        try {
+            final BuildStatistics statistics = BuildStatistics.read(file);
+            logger.info("Loaded statistics of {} statements, {} predicates, {} classes and {} graphs from {}",statistics.getStatements(),statistics.getPredicates(),statistics.getClasses(),statistics.getGraphs(),file);
+            return statistics;
+        } catch (final IOException e) {
+            logger.warn("Unable to read statistics file {}; using store statistics",file,e);
+            return null;
+        }
+    }
+
+    @Override
+    public EvaluationStrategy createEvaluationStrategy(final Dataset dataset, final TripleSource tripleSource, final EvaluationStatistics evaluationStatistics) {
+        return super.createEvaluationStrategy(dataset,tripleSource,statistics == null ? evaluationStatistics : new BuildEvaluationStatistics(statistics,evaluationStatistics));
+    }
+}
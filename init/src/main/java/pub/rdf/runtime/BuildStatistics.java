@@ -0,0 +1,150 @@
+package pub.rdf.runtime;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+// Cardinalities of the site database counted at the end of the build, written next to the store for the runtime
+// server's query optimizer. The file starts with RQS1 and the number of statements, then every predicate with its
+// statements and estimated distinct subjects and objects, every class with its instances, and every named graph with
+// its statements. Counts and lengths are unsigned LEB128 varints and strings are UTF-8 prefixed by their byte length.
+// This class is shipped to the runtime server, so it depends on nothing else of the generator.
+public final class BuildStatistics {
+    public final static String FILENAME = "statistics.dat";
+    private final static String MAGIC = "RQS1";
+
+    public record Predicate(long statements, long subjects, long objects) {}
+
+    private final long statements;
+    private final Map<String,Predicate> predicates;
+    private final Map<String,Long> classes;
+    private final Map<String,Long> graphs;
+
+    public BuildStatistics(final long statements, final Map<String,Predicate> predicates, final Map<String,Long> classes, final Map<String,Long> graphs) {
+        this.statements = statements;
+        this.predicates = predicates;
+        this.classes = classes;
+        this.graphs = graphs;
+    }
+
+    public static BuildStatistics read(final Path file) throws IOException {
+        try(final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file),65536))) {
+            final byte[] magic = new byte[MAGIC.length()];
+            in.readFully(magic);
+            if(!MAGIC.equals(new String(magic,StandardCharsets.US_ASCII))) {
+                throw new IOException(String.format("%s is not a statistics file",file));
+            }
+
+            final long statements = varint(in);
+            final int predicateCount = (int) varint(in);
+            final Map<String,Predicate> predicates = new HashMap<>(predicateCount * 2);
+            for(int i = 0; i < predicateCount; i++) {
+                predicates.put(string(in),new Predicate(varint(in),varint(in),varint(in)));
+            }
+            return new BuildStatistics(statements,predicates,counts(in),counts(in));
+        }
+    }
+
+    public void write(final Path file) throws IOException {
+        final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try(final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp),65536))) {
+            out.writeBytes(MAGIC);
+            varint(out,statements);
+            varint(out,predicates.size());
+            for(final Map.Entry<String,Predicate> predicate : predicates.entrySet()) {
+                string(out,predicate.getKey());
+                varint(out,predicate.getValue().statements());
+                varint(out,predicate.getValue().subjects());
+                varint(out,predicate.getValue().objects());
+            }
+            counts(out,classes);
+            counts(out,graphs);
+        }
+        Files.move(temp,file,StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public long getStatements() {
+        return statements;
+    }
+
+    // Null for predicates that aren't in the database
+    public Predicate getPredicate(final String iri) {
+        return predicates.get(iri);
+    }
+
+    public long getClassInstances(final String iri) {
+        return classes.getOrDefault(iri,0L);
+    }
+
+    public long getGraphStatements(final String iri) {
+        return graphs.getOrDefault(iri,0L);
+    }
+
+    public int getPredicates() {
+        return predicates.size();
+    }
+
+    public int getClasses() {
+        return classes.size();
+    }
+
+    public int getGraphs() {
+        return graphs.size();
+    }
+
+    private static Map<String,Long> counts(final DataInputStream in) throws IOException {
+        final int size = (int) varint(in);
+        final Map<String,Long> counts = new HashMap<>(size * 2);
+        for(int i = 0; i < size; i++) {
+            counts.put(string(in),varint(in));
+        }
+        return counts;
+    }
+
+    private static void counts(final DataOutputStream out, final Map<String,Long> counts) throws IOException {
+        varint(out,counts.size());
+        for(final Map.Entry<String,Long> count : counts.entrySet()) {
+            string(out,count.getKey());
+            varint(out,count.getValue());
+        }
+    }
+
+    private static long varint(final DataInputStream in) throws IOException {
+        long value = 0;
+        for(int shift = 0; ; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private static void varint(final DataOutputStream out, long value) throws IOException {
+        while((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static String string(final DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[(int) varint(in)];
+        in.readFully(bytes);
+        return new String(bytes,StandardCharsets.UTF_8);
+    }
+
+    private static void string(final DataOutputStream out, final String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        varint(out,bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,71 @@
+package pub.rdf.traversal;
+
+import pub.rdf.builder.Builder;
+import pub.rdf.config.RDFPUBConfig;
+import pub.rdf.resource.RDFPUBResource;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class ParallelTraversal extends ResourceTraversal {
+    public ParallelTraversal(final RDFPUBConfig config, final Builder[] builders, final Collection<Exception> buildErrors) {
+        super(config,builders,buildErrors);
+    }
+
+    @Override
+    public void traverse() {
+        final ForkJoinPool pool = new ForkJoinPool(config.getParallelism());
+        try {
+            pool.invoke(new DirectoryTask(config.getInputDirectory()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Processes one resource directory, forks its subdirectories and finishes the resource once they are all done
+    private final class DirectoryTask extends RecursiveAction {
+        private final static long serialVersionUID = 1L;
+
+        private final Path dir;
+
+        private DirectoryTask(final Path dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected void compute() {
+            if(!filter.acceptDirectory(dir)) {
+                return;
+            }
+
+            final RDFPUBResource resource = newResource(dir);
+            final List<DirectoryTask> subdirectories = new ArrayList<>();
+            try(final DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for(final Path entry : entries) {
+                    try {
+                        // Symbolic links are not followed, same as a serial walk
+                        if(Files.readAttributes(entry,BasicFileAttributes.class,LinkOption.NOFOLLOW_LINKS).isDirectory()) {
+                            subdirectories.add(new DirectoryTask(entry));
+                        } else if(filter.acceptFile(entry)) {
+                            resourceFile(resource,entry);
+                        }
+                    } catch(final IOException e) {
+                        checkBuildError(e);
+                    }
+                }
+            } catch(final IOException e) {
+                checkBuildError(e);
+            }
+
+            // Descendants must all be finished before this resource is, as layouts propagate downward
+            invokeAll(subdirectories);
+            finishedResource(resource);
+        }
+    }
+}
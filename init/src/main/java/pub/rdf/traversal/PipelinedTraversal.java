@@ -0,0 +1,201 @@
+package pub.rdf.traversal;
+
+import pub.rdf.builder.Builder;
+import pub.rdf.config.RDFPUBConfig;
+import pub.rdf.resource.RDFPUBResource;
+import pub.rdf.resource.ResourceFile;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static pub.rdf.util.Program.out;
+
+// Runs each builder as a stage on its own thread, connected by bounded queues in builder order.
+// Every builder sees the same sequence of events as in a serial build, and an event only reaches a
+// stage once all earlier stages have handled it, so builders may rely on the work of earlier ones.
+// The stages are the builders rather than separate parse, load, query and render stages: the database builder
+// parses and loads, the resource file builder lays out pages whose queries run once loading completes, and pages
+// are rendered by the render process after the build.
+public class PipelinedTraversal extends ResourceTraversal {
+    private enum Kind { NEW, FILE, FINISHED, END }
+    private record Event(Kind kind, RDFPUBResource resource, Path file) {}
+
+    private final Builder[] builders;
+
+    // Set once a builder throws an Error, after which stages only pass events on so that the pipeline drains
+    private volatile boolean aborted = false;
+
+    public PipelinedTraversal(final RDFPUBConfig config, final Builder[] builders, final Collection<Exception> buildErrors) {
+        super(config,builders,buildErrors);
+        this.builders = builders;
+    }
+
+    private final class Stage implements Callable<Void> {
+        private final Builder builder;
+        private final BlockingQueue<Event> queue = new ArrayBlockingQueue<>(config.getPipelineCapacity());
+        private Stage next = null;
+        private long events = 0, busy = 0, idle = 0, blocked = 0;
+
+        private Stage(final Builder builder) {
+            this.builder = builder;
+        }
+
+        private Exception handle(final Event event) {
+            switch(event.kind()) {
+                case NEW:
+                    return builder.handleNewResource(event.resource());
+                case FILE:
+                    return builder.handleResourceFile(event.resource(),new ResourceFile(event.file()));
+                case FINISHED:
+                    return builder.handleFinishedResource(event.resource());
+                default:
+                    return null;
+            }
+        }
+
+        @Override
+        public Void call() throws InterruptedException {
+            while(true) {
+                final long waiting = System.nanoTime();
+                final Event event = queue.take();
+                final long working = System.nanoTime();
+                idle += working - waiting;
+
+                if(event.kind() != Kind.END && !aborted) {
+                    try {
+                        checkBuildError(handle(event));
+                    } catch (final RuntimeException e) {
+                        checkBuildError(e);
+                    } catch (final Error e) {
+                        checkBuildError(new Exception(String.format("Builder %s failed",builder.getClass().getSimpleName()),e));
+                        aborted = true;
+                    }
+                    events++;
+                }
+
+                // Hand off downstream, blocking while the next stage is full
+                final long handing = System.nanoTime();
+                busy += handing - working;
+                if(next != null) {
+                    next.queue.put(event);
+                    blocked += System.nanoTime() - handing;
+                }
+
+                if(event.kind() == Kind.END) {
+                    return null;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void traverse() throws IOException {
+        // Create and link stages
+        final List<Stage> stages = new ArrayList<>(builders.length);
+        for(final Builder builder : builders) {
+            final Stage stage = new Stage(builder);
+            if(!stages.isEmpty()) {
+                stages.get(stages.size() - 1).next = stage;
+            }
+            stages.add(stage);
+        }
+        final Stage first = stages.get(0);
+
+        // Start every stage on its own executor
+        final Instant start = Instant.now();
+        final List<ExecutorService> executors = new ArrayList<>(stages.size());
+        final List<Future<Void>> results = new ArrayList<>(stages.size());
+        for(final Stage stage : stages) {
+            final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable,"rdfpub-" + stage.builder.getClass().getSimpleName()));
+            executors.add(executor);
+            results.add(executor.submit(stage));
+        }
+
+        // Scan the input directory on this thread, feeding events into the first stage
+        final long[] scanBlocked = { 0 };
+        try {
+            Files.walkFileTree(config.getInputDirectory(), new SimpleFileVisitor<>() {
+                private final Deque<RDFPUBResource> resources = new LinkedList<>();
+
+                // Scanning stops once the pipeline is aborted
+                private FileVisitResult emit(final Event event) throws IOException {
+                    final long handing = System.nanoTime();
+                    try {
+                        first.queue.put(event);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while scanning input directory",e);
+                    }
+                    scanBlocked[0] += System.nanoTime() - handing;
+                    return aborted ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) throws IOException {
+                    if(!filter.acceptDirectory(dir)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    final RDFPUBResource resource = createResource(dir);
+                    resources.push(resource);
+                    return emit(new Event(Kind.NEW,resource,null));
+                }
+
+                @Override
+                public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                    if(filter.acceptFile(file)) {
+                        return emit(new Event(Kind.FILE,resources.peek(),file));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(final Path file, final IOException e) {
+                    // Collect exception
+                    checkBuildError(e);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(final Path dir, final IOException e) throws IOException {
+                    return emit(new Event(Kind.FINISHED,resources.pop(),null));
+                }
+            });
+        } finally {
+            // Drain the pipeline, even if scanning failed
+            try {
+                first.queue.put(new Event(Kind.END,null,null));
+                for(final Future<Void> result : results) {
+                    result.get();
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for builder pipeline",e);
+            } catch (final ExecutionException e) {
+                throw new IOException("Builder pipeline stage failed",e.getCause());
+            } finally {
+                for(final ExecutorService executor : executors) {
+                    executor.shutdownNow();
+                }
+            }
+        }
+
+        // Report stage utilisation
+        final long wall = Math.max(1,Duration.between(start,Instant.now()).toNanos());
+        out("Builder pipeline finished in %ss",wall / 1e9);
+        out("  %-24s blocked %5.1f%%","scan",100.0 * scanBlocked[0] / wall);
+        for(final Stage stage : stages) {
+            out("  %-24s %8s events, busy %5.1f%%, idle %5.1f%%, blocked %5.1f%%",
+                stage.builder.getClass().getSimpleName(),
+                stage.events,
+                100.0 * stage.busy / wall,
+                100.0 * stage.idle / wall,
+                100.0 * stage.blocked / wall
+            );
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package pub.rdf.traversal;
+
+import pub.rdf.config.RDFPUBConfig;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static pub.rdf.util.Program.out;
+
+public final class ResourceFilter {
+    private final Pattern includes;
+    private final Pattern excludes;
+
+    public ResourceFilter(final RDFPUBConfig config) {
+        this.includes = compile(config.getIncludeFiles());
+        this.excludes = compile(config.getExcludeFiles());
+    }
+
+    // Combine a list of regexes into a single alternation, or null if there are none
+    private static Pattern compile(final List<String> regexes) {
+        if(regexes.isEmpty()) {
+            return null;
+        }
+
+        final StringBuilder patternstr = new StringBuilder(256);
+        for(final String regex : regexes) {
+            patternstr.append("(?:").append(regex).append(")|");
+        }
+        return Pattern.compile(patternstr.deleteCharAt(patternstr.length() - 1).toString());
+    }
+
+    // Same decision as acceptFile, without logging
+    public boolean isAccepted(final Path path) {
+        final String pathstr = path.toString();
+        if(includes != null && includes.matcher(pathstr).find()) {
+            return true;
+        } else {
+            return (excludes == null || !excludes.matcher(pathstr).find()) && !pathstr.contains("/.");
+        }
+    }
+
+    public boolean acceptDirectory(final Path dir) {
+        final String dirstr = dir.toString();
+        if(includes != null && includes.matcher(dirstr).find()) {
+            out("Directory %s is explicitly included in the build",dirstr);
+        } else if (excludes != null && excludes.matcher(dirstr).find()) {
+            out("Directory %s is explicitly excluded from the build",dirstr);
+            return false;
+        } else if (dirstr.contains("/.")) {
+            out("Skipping dot directory %s", dir);
+            return false;
+        }
+        return true;
+    }
+
+    public boolean acceptFile(final Path file) {
+        final String filestr = file.toString();
+        if(includes != null && includes.matcher(filestr).find()) {
+            out("File %s is explicitly included in the build",filestr);
+        } else if (excludes != null && excludes.matcher(filestr).find()) {
+            out("File %s is explicitly excluded from the build",filestr);
+            return false;
+        } else if (filestr.contains("/.")) {
+            out("Skipping dot file %s", file);
+            return false;
+        }
+        return true;
+    }
+}
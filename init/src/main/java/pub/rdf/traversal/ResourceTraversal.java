@@ -0,0 +1,81 @@
+package pub.rdf.traversal;
+
+import pub.rdf.builder.Builder;
+import pub.rdf.config.RDFPUBConfig;
+import pub.rdf.resource.RDFPUBResource;
+import pub.rdf.resource.ResourceFile;
+import pub.rdf.util.Program;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+
+import static pub.rdf.util.Program.out;
+
+public abstract class ResourceTraversal {
+    protected final RDFPUBConfig config;
+    protected final ResourceFilter filter;
+    private final Builder[] builders;
+    private final Collection<Exception> buildErrors;
+
+    protected ResourceTraversal(final RDFPUBConfig config, final Builder[] builders, final Collection<Exception> buildErrors) {
+        this.config = config;
+        this.filter = new ResourceFilter(config);
+        this.builders = builders;
+        this.buildErrors = buildErrors;
+    }
+
+    // Choose a traversal strategy based on the configured parallelism
+    public static ResourceTraversal of(final RDFPUBConfig config, final Builder[] builders, final Collection<Exception> buildErrors) {
+        if(config.isPipelined()) {
+            out("Traversing input directory with a staged builder pipeline");
+            return new PipelinedTraversal(config,builders,buildErrors);
+        } else if(config.getParallelism() > 1) {
+            out("Traversing input directory with parallelism %s",config.getParallelism());
+            return new ParallelTraversal(config,builders,buildErrors);
+        } else {
+            return new SerialTraversal(config,builders,buildErrors);
+        }
+    }
+
+    public abstract void traverse() throws IOException;
+
+    protected void checkBuildError(final Exception e) {
+        if(e != null) {
+            Program.err("ERROR: %s",e.getMessage());
+            e.printStackTrace();
+            buildErrors.add(e);
+        }
+    }
+
+    protected RDFPUBResource createResource(final Path dir) {
+        return new RDFPUBResource(config,config.getInputDirectory().relativize(dir));
+    }
+
+    protected RDFPUBResource newResource(final Path dir) {
+        // Create resource for current path
+        final RDFPUBResource resource = createResource(dir);
+
+        // Builder processing
+        for(final Builder builder : builders) {
+            checkBuildError(builder.handleNewResource(resource));
+        }
+        return resource;
+    }
+
+    protected void resourceFile(final RDFPUBResource resource, final Path file) {
+        out("Current resource is %s",resource);
+
+        // Builder processing
+        for(final Builder builder : builders) {
+            checkBuildError(builder.handleResourceFile(resource,new ResourceFile(file)));
+        }
+    }
+
+    protected void finishedResource(final RDFPUBResource resource) {
+        // Builder processing
+        for(final Builder builder : builders) {
+            checkBuildError(builder.handleFinishedResource(resource));
+        }
+    }
+}
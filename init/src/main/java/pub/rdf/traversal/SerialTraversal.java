@@ -0,0 +1,55 @@
+package pub.rdf.traversal;
+
+import pub.rdf.builder.Builder;
+import pub.rdf.config.RDFPUBConfig;
+import pub.rdf.resource.RDFPUBResource;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedList;
+
+public class SerialTraversal extends ResourceTraversal {
+    public SerialTraversal(final RDFPUBConfig config, final Builder[] builders, final Collection<Exception> buildErrors) {
+        super(config,builders,buildErrors);
+    }
+
+    @Override
+    public void traverse() throws IOException {
+        Files.walkFileTree(config.getInputDirectory(), new SimpleFileVisitor<>() {
+            private final Deque<RDFPUBResource> resources = new LinkedList<>();
+
+            @Override
+            public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) {
+                if(!filter.acceptDirectory(dir)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                resources.push(newResource(dir));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+                if(filter.acceptFile(file)) {
+                    resourceFile(resources.peek(),file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(final Path file, final IOException e) {
+                // Collect exception
+                checkBuildError(e);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(final Path dir, final IOException e) {
+                finishedResource(resources.pop());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -5,22 +5,22 @@ import java.io.InputStream;
 import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
-import java.util.Date;
 
 public final class Program {
-    private final static StringBuilder dateStringBuilder = new StringBuilder(32);
-    private static void printDate(final PrintStream stream) {
-        dateStringBuilder.setLength(0);
-        stream.print(dateStringBuilder.append('[').append(Instant.now()).append(']').append(' '));
+    // Lines are formatted up front and printed in one call so that concurrent builders don't interleave output
+    private static void print(final PrintStream stream, final String message, final Object... objects) {
+        final String line = new StringBuilder(128).append('[').append(Instant.now()).append(']').append(' ').append(String.format(message,objects)).toString();
+        synchronized(stream) {
+            stream.println(line);
+        }
     }
+
     public static void out(String message, Object... objects) {
-        printDate(System.out);
-        System.out.printf(message + "%n",objects);
+        print(System.out,message,objects);
     }
 
     public static void err(String message, Object... objects) {
-        printDate(System.err);
-        System.err.printf(message + "%n",objects);
+        print(System.err,message,objects);
     }
 
     public static void xerr(final String why, final Exception e) {
@@ -0,0 +1,82 @@
+package pub.rdf.watch;
+
+import pub.rdf.config.RDFPUBConfig;
+import pub.rdf.traversal.ResourceFilter;
+import pub.rdf.util.Program;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+public class InputWatcher implements Closeable {
+    private final RDFPUBConfig config;
+    private final ResourceFilter filter;
+    private final long debounce;
+    private final WatchService watcher;
+    private final Map<WatchKey,Path> directories = new HashMap<>(256);
+
+    public InputWatcher(final RDFPUBConfig config, final long debounce) throws IOException {
+        this.config = config;
+        this.filter = new ResourceFilter(config);
+        this.debounce = debounce;
+        this.watcher = config.getInputDirectory().getFileSystem().newWatchService();
+        register(config.getInputDirectory());
+    }
+
+    // Watch a directory and all of its subdirectories that are part of the build
+    private void register(final Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) throws IOException {
+                if(!dir.equals(config.getInputDirectory()) && !filter.isAccepted(dir)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                directories.put(dir.register(watcher,ENTRY_CREATE,ENTRY_DELETE,ENTRY_MODIFY),dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // Block until input files change, then keep collecting until events stop arriving for the debounce period
+    public Set<Path> awaitChanges() throws InterruptedException, IOException {
+        final Set<Path> changes = new HashSet<>(16);
+        WatchKey key = watcher.take();
+        while(key != null) {
+            final Path dir = directories.get(key);
+            for(final WatchEvent<?> event : key.pollEvents()) {
+                if(event.kind() == OVERFLOW) {
+                    Program.err("WARNING: Too many file events to track individually; rebuilding all changes");
+                    changes.add(config.getInputDirectory());
+                    continue;
+                }
+
+                final Path path = dir.resolve((Path) event.context());
+                if(event.kind() == ENTRY_CREATE && Files.isDirectory(path,LinkOption.NOFOLLOW_LINKS)) {
+                    register(path);
+                }
+                if(path.equals(config.getInputDirectory().resolve(".rdfpub")) || filter.isAccepted(path)) {
+                    changes.add(path);
+                }
+            }
+
+            if(!key.reset()) {
+                directories.remove(key);
+            }
+            key = watcher.poll(debounce,TimeUnit.MILLISECONDS);
+        }
+        return changes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        watcher.close();
+    }
+}
@@ -0,0 +1,123 @@
+package pub.rdf.benchmark;
+
+import org.eclipse.rdf4j.model.Model;
+import org.eclipse.rdf4j.query.QueryLanguage;
+import org.eclipse.rdf4j.query.TupleQuery;
+import org.eclipse.rdf4j.query.TupleQueryResult;
+import org.eclipse.rdf4j.query.algebra.evaluation.EvaluationStrategyFactory;
+import org.eclipse.rdf4j.query.algebra.evaluation.impl.StrictEvaluationStrategyFactory;
+import org.eclipse.rdf4j.query.explanation.Explanation;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.sail.SailRepository;
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.eclipse.rdf4j.rio.Rio;
+import org.eclipse.rdf4j.sail.lmdb.LmdbStore;
+import org.eclipse.rdf4j.sail.lmdb.config.LmdbStoreConfig;
+import org.eclipse.rdf4j.sail.nativerdf.NativeStore;
+import pub.rdf.runtime.BuildEvaluationStrategyFactory;
+import pub.rdf.runtime.BuildStatistics;
+import pub.rdf.util.Program;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static pub.rdf.util.Program.out;
+
+// Compares the plans and run times of sample queries over a built site database between the store's own statistics
+// and the statistics of the build. It lives with the tests so that it stays out of init.jar, and runs once they're
+// compiled, like so:
+//
+//   java -cp target/init.jar:target/test-classes pub.rdf.benchmark.StatisticsBenchmark output/db query.rq [query.rq ...]
+//
+// Each query is explained with its optimized plan and cardinality estimates, then run a few times after a warmup,
+// reporting the median time and rows for both, and whether the join order changed.
+public final class StatisticsBenchmark {
+    private final static int RUNS = 5;
+
+    private record Result(String plan, double medianMillis, long rows) {}
+
+    public static void main(final String[] args) throws IOException {
+        if(args.length < 2) {
+            Program.xerr("StatisticsBenchmark requires a database directory and at least one query file",new IllegalArgumentException("Too few program arguments supplied"));
+        }
+        final Path dbdir = Path.of(args[0]);
+        final Map<String,String> queries = new LinkedHashMap<>(args.length * 2);
+        for(final String file : Arrays.asList(args).subList(1,args.length)) {
+            queries.put(file,Files.readString(Path.of(file)));
+        }
+
+        final Map<String,Result> store = run(dbdir,new StrictEvaluationStrategyFactory(),queries);
+        final Map<String,Result> build = run(dbdir,new BuildEvaluationStrategyFactory(dbdir.resolve(BuildStatistics.FILENAME)),queries);
+
+        for(final String query : queries.keySet()) {
+            final Result before = store.get(query);
+            final Result after = build.get(query);
+            out("Query %s%s",query,before.plan().equals(after.plan()) ? " (same plan)" : " (plan changed)");
+            out("Store statistics: %sms median for %s rows\n%s",before.medianMillis(),before.rows(),before.plan());
+            out("Build statistics: %sms median for %s rows\n%s",after.medianMillis(),after.rows(),after.plan());
+            out("Speedup: %sx",before.medianMillis() / Math.max(0.001,after.medianMillis()));
+        }
+    }
+
+    private static Map<String,Result> run(final Path dbdir, final EvaluationStrategyFactory factory, final Map<String,String> queries) throws IOException {
+        final SailRepository repository = open(dbdir,factory);
+        final Map<String,Result> results = new LinkedHashMap<>(queries.size() * 2);
+        try(final RepositoryConnection connection = repository.getConnection()) {
+            for(final Map.Entry<String,String> query : queries.entrySet()) {
+                final TupleQuery prepared = connection.prepareTupleQuery(QueryLanguage.SPARQL,query.getValue());
+                final String plan = prepared.explain(Explanation.Level.Optimized).toString();
+
+                // The first run warms up the store's caches and isn't counted
+                final double[] millis = new double[RUNS];
+                long rows = 0;
+                for(int run = -1; run < RUNS; run++) {
+                    final long start = System.nanoTime();
+                    rows = 0;
+                    try(final TupleQueryResult result = prepared.evaluate()) {
+                        while(result.hasNext()) {
+                            result.next();
+                            rows++;
+                        }
+                    }
+                    if(run >= 0) {
+                        millis[run] = (System.nanoTime() - start) / 1e6;
+                    }
+                }
+                Arrays.sort(millis);
+                results.put(query.getKey(),new Result(plan,millis[RUNS / 2],rows));
+            }
+        } finally {
+            repository.shutDown();
+        }
+        return results;
+    }
+
+    // Open the store with the backend and triple indexes its runtime config names
+    private static SailRepository open(final Path dbdir, final EvaluationStrategyFactory factory) throws IOException {
+        final Model config;
+        try(final Reader reader = Files.newBufferedReader(dbdir.resolve("config.ttl"))) {
+            config = Rio.parse(reader,"",RDFFormat.TURTLE);
+        }
+        final String indexes = config.stream()
+            .filter(st -> st.getPredicate().getLocalName().equals("tripleIndexes"))
+            .map(st -> st.getObject().stringValue())
+            .findFirst()
+            .orElse("spoc,posc");
+
+        final SailRepository repository;
+        if(Files.exists(dbdir.resolve("nativerdf.ver"))) {
+            final NativeStore store = new NativeStore(dbdir.toFile(),indexes);
+            store.setEvaluationStrategyFactory(factory);
+            repository = new SailRepository(store);
+        } else {
+            final LmdbStore store = new LmdbStore(dbdir.toFile(),new LmdbStoreConfig(indexes));
+            store.setEvaluationStrategyFactory(factory);
+            repository = new SailRepository(store);
+        }
+        repository.init();
+        return repository;
+    }
+}
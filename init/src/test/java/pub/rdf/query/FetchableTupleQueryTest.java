@@ -0,0 +1,135 @@
+package pub.rdf.query;
+
+import com.sun.net.httpserver.HttpServer;
+import org.eclipse.rdf4j.common.iteration.Iterations;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.model.vocabulary.FOAF;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.QueryLanguage;
+import org.eclipse.rdf4j.query.QueryResults;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.sail.SailRepository;
+import org.eclipse.rdf4j.sail.memory.MemoryStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Fetches a document from a local HTTP stand-in for its host, through the fetch endpoint
+class FetchableTupleQueryTest {
+    private final static String BASE = "https://site.example/";
+    private final static String DOCUMENT = "https://data.example/people";
+    private final static String ETAG = "\"people-1\"";
+    private final static String BODY = "<https://data.example/people#bob> <http://xmlns.com/foaf/0.1/name> \"Bob\" .\n";
+    private final static String QUERY = "PREFIX foaf: <http://xmlns.com/foaf/0.1/>\n"
+        + "SELECT ?name WHERE { ?resource foaf:knows ?friend . GRAPH <" + DOCUMENT + "> { ?friend foaf:name ?name } }";
+
+    private final ValueFactory rdf = SimpleValueFactory.getInstance();
+    private final AtomicInteger downloads = new AtomicInteger(0);
+    private final AtomicInteger revalidations = new AtomicInteger(0);
+    private HttpServer standIn;
+    private SailRepository site;
+
+    @TempDir
+    Path cache;
+
+    @BeforeEach
+    void start() throws IOException {
+        // Answers with the document, or with 304 to requests that already have it
+        standIn = HttpServer.create(new InetSocketAddress("127.0.0.1",0),0);
+        standIn.createContext("/people",exchange -> {
+            if(ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                revalidations.incrementAndGet();
+                exchange.sendResponseHeaders(304,-1);
+            } else {
+                downloads.incrementAndGet();
+                final byte[] body = BODY.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type","text/turtle");
+                exchange.getResponseHeaders().set("ETag",ETAG);
+                exchange.sendResponseHeaders(200,body.length);
+                try(final OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+            exchange.close();
+        });
+        standIn.start();
+
+        site = new SailRepository(new MemoryStore());
+        site.init();
+        try(final RepositoryConnection connection = site.getConnection()) {
+            connection.add(alice(),FOAF.KNOWS,rdf.createIRI(DOCUMENT + "#bob"),alice());
+        }
+    }
+
+    @AfterEach
+    void stop() {
+        standIn.stop(0);
+        site.shutDown();
+    }
+
+    private IRI alice() {
+        return rdf.createIRI(BASE + "alice");
+    }
+
+    private DocumentFetcher fetcher() throws IOException {
+        return new DocumentFetcher(cache,URI.create("http://127.0.0.1:" + standIn.getAddress().getPort()),2,Duration.ofSeconds(5));
+    }
+
+    private List<String> names(final RepositoryConnection connection, final DocumentFetcher fetcher) {
+        final PreparedQuery prepared = new PreparedQuery(connection,QUERY,BASE,fetcher,3);
+        return QueryResults.asList(prepared.bind(alice(),"en").evaluate()).stream()
+            .map(solution -> solution.getValue("name").stringValue())
+            .collect(Collectors.toList());
+    }
+
+    @Test
+    void fetchingQuerySeesDocument() throws IOException {
+        try(final DocumentFetcher fetcher = fetcher(); final RepositoryConnection connection = site.getConnection()) {
+            assertEquals(List.of("Bob"),names(connection,fetcher));
+            assertEquals(1,downloads.get());
+        }
+    }
+
+    @Test
+    void documentsStayOutOfTheSiteDatabase() throws IOException {
+        try(final DocumentFetcher fetcher = fetcher(); final RepositoryConnection connection = site.getConnection()) {
+            names(connection,fetcher);
+
+            final List<BindingSet> others = QueryResults.asList(connection.prepareTupleQuery(QueryLanguage.SPARQL,"SELECT ?name WHERE { ?person <http://xmlns.com/foaf/0.1/name> ?name }").evaluate());
+            assertTrue(others.isEmpty());
+            final List<Resource> graphs = Iterations.asList(connection.getContextIDs());
+            assertEquals(List.of(alice()),graphs);
+        }
+    }
+
+    @Test
+    void unchangedDocumentsAreRevalidatedNotDownloaded() throws IOException {
+        try(final DocumentFetcher fetcher = fetcher(); final RepositoryConnection connection = site.getConnection()) {
+            assertEquals(List.of("Bob"),names(connection,fetcher));
+        }
+
+        // A later build starts with a new fetcher over the same cache
+        try(final DocumentFetcher fetcher = fetcher(); final RepositoryConnection connection = site.getConnection()) {
+            assertEquals(List.of("Bob"),names(connection,fetcher));
+        }
+        assertEquals(1,downloads.get());
+        assertEquals(1,revalidations.get());
+    }
+}
@@ -1,5 +1,9 @@
+// Compress rendered pages on as many libuv threads as there are cores
+process.env.UV_THREADPOOL_SIZE ??= require('os').cpus().length;
+
 const fs = require('fs');
 const url = require('url');
+const zlib = require('zlib');
 const Handlebars = require('handlebars');
 const MarkdownIt = require('markdown-it');
 
@@ -7,6 +11,7 @@ const MarkdownIt = require('markdown-it');
 const INPUTDIR = process.argv[2];
 const OUTPUTDIR = process.argv[3];
 const BASEURI = process.argv[4];
+const COMPRESSMINSIZE = parseInt(process.argv[5] ?? '512', 10);
 
 console.log(`Input directory is ${INPUTDIR}`);
 console.log(`Output directory is ${OUTPUTDIR}`);
@@ -17,6 +22,44 @@ const subpath = (dir, segment) => {
   return dir + '/' + segment;
 };
 
+// Precompress rendered pages alongside the files written by init, keeping only files that shrink
+const compressions = [];
+const compressors = [
+  ['gz', zlib.gzip, { level: 9 }],
+  [
+    'br',
+    zlib.brotliCompress,
+    { params: { [zlib.constants.BROTLI_PARAM_QUALITY]: 9 } },
+  ],
+];
+const precompress = (path, contents) => {
+  const buffer = Buffer.from(contents);
+  compressors.forEach(([extension, compress, options]) => {
+    const target = `${path}.${extension}`;
+    if (buffer.length < COMPRESSMINSIZE) {
+      fs.rmSync(target, { force: true });
+      return;
+    }
+    compressions.push(
+      new Promise((resolve, reject) => {
+        compress(buffer, options, (err, compressed) => {
+          if (err) {
+            reject(err);
+          } else if (compressed.length < buffer.length) {
+            fs.writeFile(target, compressed, (err) =>
+              err ? reject(err) : resolve()
+            );
+          } else {
+            fs.rm(target, { force: true }, (err) =>
+              err ? reject(err) : resolve()
+            );
+          }
+        });
+      })
+    );
+  });
+};
+
 // Decorate SPARQL query results with convenience values
 const decorateSPARQLResults = function (rq) {
   // {{# each query }}...{{/ each }}
@@ -42,6 +85,99 @@ const decorateSPARQLResults = function (rq) {
   return rq;
 };
 
+// Unpack the packed query results init writes for a resource: RQB1, a dictionary of RDF terms, then every query
+// result by name and language with rows of dictionary indexes, 0 standing for unbound. Counts, lengths and indexes
+// are unsigned LEB128 varints and strings are UTF-8 prefixed by their byte length.
+const unpackSPARQLResults = (buffer) => {
+  let offset = 4;
+  const varint = () => {
+    let value = 0;
+    let shift = 0;
+    let byte;
+    do {
+      byte = buffer[offset++];
+      value += (byte & 0x7f) * 2 ** shift;
+      shift += 7;
+    } while (byte & 0x80);
+    return value;
+  };
+  const string = () => {
+    const length = varint();
+    offset += length;
+    return buffer.toString('utf8', offset - length, offset);
+  };
+
+  if (buffer.toString('latin1', 0, 4) !== 'RQB1') {
+    throw new Error('Packed query results do not start with RQB1');
+  }
+
+  // Terms are shaped like SPARQL JSON results and shared by every binding that uses them
+  const terms = [];
+  for (let count = varint(); count > 0; count--) {
+    const type = buffer[offset++];
+    switch (type) {
+      case 0:
+        terms.push({ type: 'uri', value: string() });
+        break;
+      case 1:
+        terms.push({ type: 'bnode', value: string() });
+        break;
+      case 2:
+        terms.push({ type: 'literal', value: string() });
+        break;
+      case 3:
+        terms.push({
+          type: 'literal',
+          value: string(),
+          'xml:lang': string(),
+        });
+        break;
+      case 4:
+        terms.push({ type: 'literal', value: string(), datatype: string() });
+        break;
+      case 5:
+        terms.push({
+          type: 'triple',
+          value: {
+            subject: terms[varint()],
+            predicate: terms[varint()],
+            object: terms[varint()],
+          },
+        });
+        break;
+      default:
+        throw new Error(`Unknown packed term type ${type}`);
+    }
+  }
+
+  const results = [];
+  for (let count = varint(); count > 0; count--) {
+    const name = string();
+    const language = string();
+    const vars = [];
+    for (let i = varint(); i > 0; i--) {
+      vars.push(string());
+    }
+    const bindings = [];
+    for (let i = varint(); i > 0; i--) {
+      const binding = {};
+      vars.forEach((v) => {
+        const term = varint();
+        if (term) {
+          binding[v] = terms[term - 1];
+        }
+      });
+      bindings.push(binding);
+    }
+    results.push({
+      name,
+      language,
+      rq: { head: { vars }, results: { bindings } },
+    });
+  }
+  return results;
+};
+
 // Extend isEmpty to look at string values and identify queries without results as empty
 const ogie = Handlebars.Utils.isEmpty;
 Handlebars.Utils.isEmpty = (o) => {
@@ -121,6 +257,10 @@ class File {
   read = () => {
     return (this._contents ??= fs.readFileSync(this.path).toString());
   };
+
+  readBuffer = () => {
+    return fs.readFileSync(this.path);
+  };
 }
 
 class Resource {
@@ -152,6 +292,17 @@ class Resource {
           JSON.parse(file.read())
         );
         break;
+      case 'rqb':
+        unpackSPARQLResults(file.readBuffer()).forEach(
+          ({ name, language, rq }) => {
+            this.queries[language] ??= {
+              $resource: this.url.href,
+              $language: language,
+            };
+            this.queries[language][name] = decorateSPARQLResults(rq);
+          }
+        );
+        break;
       case 'handlebars':
       case 'hbs':
         if (file.name === 'index') {
@@ -172,10 +323,10 @@ class Resource {
       console.log(
         `rendering language ${language} @ ${this.outputdir}/index@${language}.html`
       );
-      fs.writeFileSync(
-        `${this.outputdir}/index@${language}.html`,
-        this.hbs.compile(index)(this.queries[language])
-      );
+      const path = `${this.outputdir}/index@${language}.html`;
+      const html = this.hbs.compile(index)(this.queries[language]);
+      fs.writeFileSync(path, html);
+      precompress(path, html);
     });
   };
 }
@@ -215,3 +366,9 @@ while (resources.length) {
   // Resource rendering
   resource.render();
 }
+
+// Wait for all pages to be compressed
+Promise.all(compressions).catch((err) => {
+  console.error(err);
+  process.exitCode = 1;
+});
@@ -0,0 +1,148 @@
+package pub.rdf.server;
+
+import com.sun.net.httpserver.HttpServer;
+import org.eclipse.rdf4j.model.Model;
+import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.repository.config.RepositoryConfig;
+import org.eclipse.rdf4j.repository.config.RepositoryConfigUtil;
+import org.eclipse.rdf4j.repository.config.RepositoryFactory;
+import org.eclipse.rdf4j.repository.config.RepositoryImplConfig;
+import org.eclipse.rdf4j.repository.config.RepositoryRegistry;
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.eclipse.rdf4j.rio.Rio;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pub.rdf.runtime.BuildStatistics;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A read-only SPARQL protocol server for the database of an rdfpub site, in place of a full RDF4J server. It opens
+// the store with the repository config the build wrote next to it and answers queries at the same path the RDF4J
+// server did, so that Nginx proxies to it unchanged:
+//
+//   java -jar server.jar /path/to/output/db [--host 127.0.0.1] [--port 8080] [--threads N] [--queue N] [--timeout 30]
+//
+// At most as many queries as threads run at once and at most queue more wait for them, the rest being refused; the
+// timeout in seconds caps every query, including those that ask for a timeout of their own. These default to the
+// SPARQLConcurrency, SPARQLQueue and SPARQLMaxQueryTime of the site, which the build writes to server.properties
+// next to the store.
+public class Main {
+    private final static Logger logger = LoggerFactory.getLogger(Main.class);
+    private final static String REPOSITORY = "rdfpub";
+    private final static int REFUSERS = 4;
+
+    public static void main(final String[] args) throws Exception {
+        final Instant start = Instant.now();
+
+        // Separate options from the database directory
+        Path dbdir = null;
+        String host = "127.0.0.1";
+        int port = 8080;
+        String threads = null;
+        String queue = null;
+        String timeout = null;
+        for(int i = 0; i < args.length; i++) {
+            try {
+                switch(args[i]) {
+                    case "--host":
+                        host = args[++i];
+                        break;
+                    case "--port":
+                        port = Integer.parseInt(args[++i]);
+                        break;
+                    case "--threads":
+                        threads = Integer.toString(Integer.parseInt(args[++i]));
+                        break;
+                    case "--queue":
+                        queue = Integer.toString(Integer.parseInt(args[++i]));
+                        break;
+                    case "--timeout":
+                        timeout = Integer.toString(Integer.parseInt(args[++i]));
+                        break;
+                    default:
+                        dbdir = Path.of(args[i]);
+                }
+            } catch (final ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                fail(String.format("Option %s requires a value",args[i]),e);
+            }
+        }
+        if(dbdir == null || !Files.isDirectory(dbdir)) {
+            fail("server requires the database directory of a built site",new IllegalArgumentException("No database directory supplied"));
+            return;
+        }
+
+        // Limits not given as options come from the build, else from defaults
+        final Properties limits = new Properties();
+        if(Files.exists(dbdir.resolve("server.properties"))) {
+            try(final Reader reader = Files.newBufferedReader(dbdir.resolve("server.properties"))) {
+                limits.load(reader);
+            }
+        }
+        final int running = Math.max(1,Integer.parseInt(Optional.ofNullable(threads).orElse(limits.getProperty("threads",Integer.toString(Runtime.getRuntime().availableProcessors() * 2)))));
+        final int waiting = Math.max(0,Integer.parseInt(Optional.ofNullable(queue).orElse(limits.getProperty("queue","40"))));
+        final int maxTime = Math.max(1,Integer.parseInt(Optional.ofNullable(timeout).orElse(limits.getProperty("timeout","30"))));
+
+        // The build statistics live next to the store rather than in an RDF4J server's data directory
+        System.setProperty("pub.rdf.statistics",dbdir.resolve(BuildStatistics.FILENAME).toString());
+        final Repository repository = open(dbdir);
+
+        // Waiting queries hold a thread each, and a few more threads refuse queries beyond the queue without delay
+        final AtomicInteger count = new AtomicInteger(0);
+        final ExecutorService executor = Executors.newFixedThreadPool(running + waiting + REFUSERS,runnable -> {
+            final Thread thread = new Thread(runnable,"rdfpub-sparql-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        final HttpServer server = HttpServer.create(new InetSocketAddress(host,port),0);
+        server.createContext("/repositories/" + REPOSITORY,new QueryHandler(repository,maxTime,running,waiting));
+        server.setExecutor(executor);
+
+        // Stop taking requests, let those in flight finish for a moment, then close the store
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(1);
+            executor.shutdown();
+            repository.shutDown();
+        },"rdfpub-shutdown"));
+
+        server.start();
+        logger.info("Serving {} on {}:{} with {} threads, a queue of {} and a {}s query timeout after {}ms",dbdir,host,port,running,waiting,maxTime,Duration.between(start,Instant.now()).toMillis());
+    }
+
+    // Open the store as the repository config written by the build describes it, with its caches, indexes and
+    // evaluation strategy
+    private static Repository open(final Path dbdir) throws IOException {
+        final Model model;
+        try(final Reader reader = Files.newBufferedReader(dbdir.resolve("config.ttl"))) {
+            model = Rio.parse(reader,"",RDFFormat.TURTLE);
+        }
+        final RepositoryConfig config = RepositoryConfigUtil.getRepositoryConfig(model,REPOSITORY);
+        if(config == null) {
+            throw new IOException(String.format("No %s repository in %s",REPOSITORY,dbdir.resolve("config.ttl")));
+        }
+        config.validate();
+
+        final RepositoryImplConfig impl = config.getRepositoryImplConfig();
+        final RepositoryFactory factory = RepositoryRegistry.getInstance().get(impl.getType())
+            .orElseThrow(() -> new IOException(String.format("Unsupported repository type %s",impl.getType())));
+        final Repository repository = factory.getRepository(impl);
+        repository.setDataDir(dbdir.toFile());
+        repository.init();
+        return repository;
+    }
+
+    private static void fail(final String why, final Exception e) {
+        logger.error(why,e);
+        System.exit(1);
+    }
+}
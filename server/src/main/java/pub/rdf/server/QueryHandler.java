@@ -0,0 +1,282 @@
+package pub.rdf.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.eclipse.rdf4j.common.lang.FileFormat;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.query.*;
+import org.eclipse.rdf4j.query.impl.SimpleDataset;
+import org.eclipse.rdf4j.query.resultio.BooleanQueryResultFormat;
+import org.eclipse.rdf4j.query.resultio.QueryResultIO;
+import org.eclipse.rdf4j.query.resultio.TupleQueryResultFormat;
+import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.eclipse.rdf4j.rio.RDFHandlerException;
+import org.eclipse.rdf4j.rio.Rio;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// Answers SPARQL protocol queries by GET or POST, writing results straight to the response in the format that the
+// Accept header asks for among those of the endpoint's query profile and a few more. Updates are refused, since the
+// site's database only changes with a build.
+final class QueryHandler implements HttpHandler {
+    private final static Logger logger = LoggerFactory.getLogger(QueryHandler.class);
+
+    // Formats by query form, the first being the default; Accept types are also matched against these aliases
+    private final static List<TupleQueryResultFormat> TUPLE_FORMATS = List.of(TupleQueryResultFormat.JSON,TupleQueryResultFormat.SPARQL,TupleQueryResultFormat.CSV,TupleQueryResultFormat.TSV);
+    private final static List<BooleanQueryResultFormat> BOOLEAN_FORMATS = List.of(BooleanQueryResultFormat.JSON,BooleanQueryResultFormat.SPARQL,BooleanQueryResultFormat.TEXT);
+    private final static List<RDFFormat> RDF_FORMATS = List.of(RDFFormat.TURTLE,RDFFormat.JSONLD,RDFFormat.RDFXML,RDFFormat.NTRIPLES,RDFFormat.NQUADS,RDFFormat.TRIG);
+    private final static Map<String,RDFFormat> RDF_ALIASES = Map.of(
+        "application/json", RDFFormat.JSONLD,
+        "application/xml", RDFFormat.RDFXML,
+        "text/ntriples", RDFFormat.NTRIPLES
+    );
+
+    private final Repository repository;
+    private final int timeout;
+    private final Semaphore admitted;
+    private final Semaphore running;
+
+    // Queries beyond those running and waiting are refused at once; waiting queries are refused once they have waited
+    // as long as a query may run
+    QueryHandler(final Repository repository, final int timeout, final int running, final int waiting) {
+        this.repository = repository;
+        this.timeout = timeout;
+        this.admitted = new Semaphore(running + waiting);
+        this.running = new Semaphore(running,true);
+    }
+
+    // Thrown once results are on their way and can't be completed; the exchange is left open so that the HTTP server
+    // drops the connection instead of ending the chunked body, and neither clients nor Nginx take it for a whole answer
+    private final static class AbortedResponse extends IOException {
+        private final static long serialVersionUID = 1L;
+
+        private final int status;
+
+        AbortedResponse(final int status, final String message, final Throwable cause) {
+            super(message,cause);
+            this.status = status;
+        }
+    }
+
+    @Override
+    public void handle(final HttpExchange exchange) throws IOException {
+        final long start = System.nanoTime();
+        int status = 200;
+        boolean complete = true;
+        try {
+            try {
+                status = admit(exchange);
+            } catch (final RuntimeException e) {
+                logger.error("Unable to answer {} {}",exchange.getRequestMethod(),exchange.getRequestURI(),e);
+                status = failed(exchange,null,500,"Unable to answer the query: " + e.getMessage(),e);
+            }
+        } catch (final AbortedResponse e) {
+            logger.warn("Results cut short: {}",e.getMessage());
+            status = e.status;
+            complete = false;
+            throw e;
+        } finally {
+            if(complete) {
+                exchange.close();
+            }
+            logger.info("{} {} {} in {}ms",exchange.getRequestMethod(),exchange.getRequestURI().getRawPath(),status,(System.nanoTime() - start) / 1000000);
+        }
+    }
+
+    private int admit(final HttpExchange exchange) throws IOException {
+        if(!admitted.tryAcquire()) {
+            exchange.getResponseHeaders().set("Retry-After","1");
+            return error(exchange,503,"Too many SPARQL queries waiting to be answered");
+        }
+        try {
+            if(!running.tryAcquire(timeout,TimeUnit.SECONDS)) {
+                exchange.getResponseHeaders().set("Retry-After","1");
+                return error(exchange,503,String.format("No SPARQL query finished within %s seconds to make room",timeout));
+            }
+            try {
+                return answer(exchange);
+            } finally {
+                running.release();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return error(exchange,503,"The server is shutting down");
+        } finally {
+            admitted.release();
+        }
+    }
+
+    private int answer(final HttpExchange exchange) throws IOException {
+        // Collect protocol parameters from the query string and any form or query body
+        final Map<String,List<String>> params = new HashMap<>(8);
+        parse(exchange.getRequestURI().getRawQuery(),params);
+        if(exchange.getRequestMethod().equals("POST")) {
+            final String type = Optional.ofNullable(exchange.getRequestHeaders().getFirst("Content-Type")).orElse("").split(";")[0].trim().toLowerCase(Locale.ROOT);
+            final String body = new String(exchange.getRequestBody().readAllBytes(),StandardCharsets.UTF_8);
+            if(type.equals("application/x-www-form-urlencoded")) {
+                parse(body,params);
+            } else if(type.equals("application/sparql-query")) {
+                params.computeIfAbsent("query",name -> new ArrayList<>(1)).add(body);
+            } else {
+                return error(exchange,415,"Queries must be posted as application/x-www-form-urlencoded or application/sparql-query");
+            }
+        } else if(!exchange.getRequestMethod().equals("GET")) {
+            exchange.getResponseHeaders().set("Allow","GET, POST");
+            return error(exchange,405,"Only GET and POST are supported");
+        }
+
+        if(params.containsKey("update")) {
+            return error(exchange,403,"The database is read-only");
+        }
+        final List<String> queries = params.getOrDefault("query",List.of());
+        if(queries.size() != 1) {
+            return error(exchange,400,"Exactly one query parameter is required");
+        }
+
+        // Queries may ask for less time than the server allows, but not more
+        int seconds = timeout;
+        try {
+            final List<String> requested = params.getOrDefault("timeout",List.of());
+            if(!requested.isEmpty() && Integer.parseInt(requested.get(0)) > 0) {
+                seconds = Math.min(timeout,Integer.parseInt(requested.get(0)));
+            }
+        } catch (final NumberFormatException e) {
+            return error(exchange,400,"The timeout parameter must be a number of seconds");
+        }
+
+        final String accept = Optional.ofNullable(exchange.getRequestHeaders().getFirst("Accept")).orElse("*/*");
+        try(final RepositoryConnection connection = repository.getConnection()) {
+            final Query query;
+            try {
+                query = connection.prepareQuery(QueryLanguage.SPARQL,queries.get(0));
+            } catch (final MalformedQueryException e) {
+                return error(exchange,400,e.getMessage());
+            }
+            query.setMaxExecutionTime(seconds);
+            query.setIncludeInferred(!params.getOrDefault("infer",List.of("true")).get(0).equals("false"));
+            try {
+                dataset(query,params);
+            } catch (final IllegalArgumentException e) {
+                return error(exchange,400,"Graph URIs must be absolute IRIs: " + e.getMessage());
+            }
+
+            // Negotiate a format for the query form, then stream the results into it
+            ResponseStream out = null;
+            try {
+                if(query instanceof TupleQuery) {
+                    final TupleQueryResultFormat format = negotiate(accept,TUPLE_FORMATS,Map.of());
+                    if(format == null) {
+                        return error(exchange,406,"No acceptable format for query results");
+                    }
+                    out = new ResponseStream(exchange,contentType(format));
+                    ((TupleQuery) query).evaluate(QueryResultIO.createTupleWriter(format,out));
+                } else if(query instanceof BooleanQuery) {
+                    final BooleanQueryResultFormat format = negotiate(accept,BOOLEAN_FORMATS,Map.of());
+                    if(format == null) {
+                        return error(exchange,406,"No acceptable format for query results");
+                    }
+                    out = new ResponseStream(exchange,contentType(format));
+                    QueryResultIO.createBooleanWriter(format,out).handleBoolean(((BooleanQuery) query).evaluate());
+                } else {
+                    final RDFFormat format = negotiate(accept,RDF_FORMATS,RDF_ALIASES);
+                    if(format == null) {
+                        return error(exchange,406,"No acceptable RDF format for query results");
+                    }
+                    out = new ResponseStream(exchange,contentType(format));
+                    ((GraphQuery) query).evaluate(Rio.createWriter(format,out));
+                }
+            } catch (final QueryInterruptedException e) {
+                return failed(exchange,out,503,String.format("Query exceeded %s seconds",seconds),e);
+            } catch (final QueryEvaluationException e) {
+                return failed(exchange,out,500,"Query evaluation failed: " + e.getMessage(),e);
+            } catch (final QueryResultHandlerException | RDFHandlerException e) {
+                return failed(exchange,out,500,"Writing query results failed: " + e.getMessage(),e);
+            }
+            out.close();
+            return 200;
+        }
+    }
+
+    // Answer with an error unless a response is already on its way, in which case it's aborted; failures outside of
+    // writing results come without a stream
+    private static int failed(final HttpExchange exchange, final ResponseStream out, final int status, final String message, final Exception e) throws IOException {
+        if(out != null && e.getCause() instanceof IOException) {
+            // The client went away
+            throw new AbortedResponse(499,message,e);
+        }
+        if((out != null && out.isCommitted()) || exchange.getResponseCode() != -1) {
+            throw new AbortedResponse(status,message,e);
+        }
+        return error(exchange,status,message);
+    }
+
+    private static int error(final HttpExchange exchange, final int status, final String message) throws IOException {
+        final byte[] body = (message == null ? "" : message).concat("\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type","text/plain;charset=UTF-8");
+        exchange.sendResponseHeaders(status,body.length);
+        try(final OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+        return status;
+    }
+
+    private static void dataset(final Query query, final Map<String,List<String>> params) {
+        final List<String> defaults = params.getOrDefault("default-graph-uri",List.of());
+        final List<String> named = params.getOrDefault("named-graph-uri",List.of());
+        if(defaults.isEmpty() && named.isEmpty()) {
+            return;
+        }
+        final ValueFactory rdf = SimpleValueFactory.getInstance();
+        final SimpleDataset dataset = new SimpleDataset();
+        defaults.forEach(graph -> dataset.addDefaultGraph(rdf.createIRI(graph)));
+        named.forEach(graph -> dataset.addNamedGraph(rdf.createIRI(graph)));
+        query.setDataset(dataset);
+    }
+
+    // The first media range of the Accept header that a format or alias matches, in header order; quality values
+    // are left to Nginx, which negotiates a single type before proxying
+    private static <F extends FileFormat> F negotiate(final String accept, final List<F> formats, final Map<String,F> aliases) {
+        for(final String range : accept.split(",")) {
+            final String type = range.split(";")[0].trim().toLowerCase(Locale.ROOT);
+            if(type.equals("*/*") || type.isEmpty()) {
+                return formats.get(0);
+            }
+            for(final F format : formats) {
+                if(format.hasMIMEType(type)) {
+                    return format;
+                }
+            }
+            if(aliases.containsKey(type)) {
+                return aliases.get(type);
+            }
+        }
+        return null;
+    }
+
+    private static String contentType(final FileFormat format) {
+        return format.hasCharset() ? format.getDefaultMIMEType() + ";charset=" + format.getCharset().name() : format.getDefaultMIMEType();
+    }
+
+    private static void parse(final String query, final Map<String,List<String>> params) {
+        if(query == null || query.isEmpty()) {
+            return;
+        }
+        for(final String pair : query.split("&")) {
+            final int eq = pair.indexOf('=');
+            final String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0,eq),StandardCharsets.UTF_8);
+            final String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1),StandardCharsets.UTF_8);
+            params.computeIfAbsent(name,key -> new ArrayList<>(1)).add(value);
+        }
+    }
+}
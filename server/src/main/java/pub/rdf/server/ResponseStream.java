@@ -0,0 +1,72 @@
+package pub.rdf.server;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Response body of a successful query. The start of the body is held back so that queries failing early, such as
+// on a timeout, can still be answered with an error status, and small results are sent with their length; once more
+// than the buffer is written, the response is committed and streamed in chunks.
+final class ResponseStream extends OutputStream {
+    private final static int BUFFER = 64 * 1024;
+
+    private final HttpExchange exchange;
+    private final String contentType;
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+    private OutputStream body = null;
+
+    ResponseStream(final HttpExchange exchange, final String contentType) {
+        this.exchange = exchange;
+        this.contentType = contentType;
+    }
+
+    // Whether an error can still be sent in place of this response
+    boolean isCommitted() {
+        return body != null;
+    }
+
+    private void commit(final long length) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type",contentType);
+        exchange.getResponseHeaders().set("Vary","Accept");
+        exchange.sendResponseHeaders(200,length);
+        body = new BufferedOutputStream(exchange.getResponseBody(),BUFFER);
+        buffer.writeTo(body);
+        buffer = null;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[] { (byte) b },0,1);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        if(body != null) {
+            body.write(b,off,len);
+            return;
+        }
+        buffer.write(b,off,len);
+        if(buffer.size() > BUFFER) {
+            commit(0);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // Held back output stays held back until the buffer fills or the response is done
+        if(body != null) {
+            body.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(body == null) {
+            commit(buffer.size() == 0 ? -1 : buffer.size());
+        }
+        body.close();
+    }
+}